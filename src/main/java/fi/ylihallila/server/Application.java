@@ -4,6 +4,7 @@ import fi.ylihallila.server.authentication.Authenticator;
 import fi.ylihallila.server.controllers.*;
 import fi.ylihallila.server.generators.Tiler;
 import fi.ylihallila.server.scripts.*;
+import fi.ylihallila.server.storage.ContainerSlideStorage;
 import fi.ylihallila.server.util.Constants;
 import fi.ylihallila.server.util.Database;
 import io.javalin.Javalin;
@@ -42,7 +43,7 @@ public class Application {
     private final Tiler tiler = new Tiler();
 
     private final ScriptManager scriptManager = new ScriptManager(
-        new BackupDatabase(), new DeleteOldBackups(), new DeleteTempFiles()
+        new BackupDatabase(), new DeleteOldBackups(), new DeleteTempFiles(), new DeleteUnusedContent()
     );
 
     private Javalin javalin = Javalin.create(config -> {
@@ -78,12 +79,19 @@ public class Application {
     private final UserController           UserController         = new UserController();
     private final FileController           FileController         = new FileController();
     private final AuthenticationController AuthController         = new AuthenticationController();
+    private final TileController           TileController         = new TileController();
 
     public Application() {
         INSTANCE = this;
 
         javalin.get("/", ctx -> ctx.html("OpenMicroanatomy").status(200));
 
+        // Tiles which aren't files, as they are in the container of their slide. Endpoints are matched before
+        // static files, so the endpoint is only registered when tiles are stored in containers
+        if (ContainerSlideStorage.isEnabled()) {
+            javalin.get("/tiles/:id/*", TileController::get, roles(ANYONE));
+        }
+
         javalin.routes(() -> path("/api/v0/", () -> {
             before(ctx -> {
                 logger.debug("Creating Database Session for Request");
@@ -111,6 +119,7 @@ public class Application {
             /* Server */
 
             get("server", ServerController::get, roles(ANYONE));
+            get("server/tiler", ServerController::tiler, roles(ADMIN));
 
             /* Authentication */
 
@@ -141,6 +150,7 @@ public class Application {
 
             crud("slides/:id", SlideController, roles(ANYONE));
             post("slides/:id/tile", SlideController::tile, roles(MANAGE_SLIDES));
+            get("slides/:id/tile", SlideController::tileStatus, roles(MANAGE_SLIDES));
 
             /* Workspaces */
 
@@ -5,10 +5,14 @@ import fi.ylihallila.server.commons.Roles;
 import fi.ylihallila.server.generators.PropertiesGenerator;
 import fi.ylihallila.server.generators.TileGenerator;
 import fi.ylihallila.server.generators.Tiler;
+import fi.ylihallila.server.generators.TilerProcess;
 import fi.ylihallila.server.models.Organization;
 import fi.ylihallila.server.models.User;
+import fi.ylihallila.server.storage.ContainerSlideStorage;
 import fi.ylihallila.server.util.*;
 import org.hibernate.Session;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.AvailableSettings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,6 +36,11 @@ public class Main {
             new SimpleDebugger();
         } else if (args.length == 2 && args[0].equalsIgnoreCase("--properties")) {
             new PropertiesGenerator(args[1]);
+        } else if (args.length == 1 && args[0].equalsIgnoreCase("--tiler-worker")) {
+            startTilerWorker();
+        } else if (args.length == 1 && args[0].equalsIgnoreCase("--tiler-process")) {
+            // Started by Tiler when tiler.process.isolated is enabled
+            TilerProcess.serve();
         } else {
             CommandLineParser parser = new CommandLineParser(args);
 
@@ -68,12 +77,34 @@ public class Main {
 
             if (input.equalsIgnoreCase("stop")) {
                 app.stop();
+            } else if (input.equalsIgnoreCase("pack-tiles")) {
+                if (!ContainerSlideStorage.isEnabled()) {
+                    logger.info("Packed tiles are only served with storage.provider = \"container\"");
+                    continue;
+                }
+
+                // Tiles are served from the files until they have been packed, so this runs while the server does
+                new Thread(ContainerSlideStorage::packAll, "tile-packer").start();
             } else {
                 logger.info("Unknown command: {}", input);
             }
         }
     }
 
+    /**
+     * Runs only the tiler, which tiles slides leased from the tiling queue of the server this worker shares its
+     * database and directories with. The server must be started first, as it creates and migrates the database.
+     */
+    private static void startTilerWorker() {
+        createDirectories();
+        checkDatabaseConnection();
+
+        Tiler tiler = Tiler.worker();
+
+        // Let other nodes tile the slides this worker was tiling without waiting for the leases to expire
+        Runtime.getRuntime().addShutdownHook(new Thread(tiler::releaseLeases));
+    }
+
     /**
      * A series of operations and checks before the server is ready to run.
      */
@@ -128,8 +159,12 @@ public class Main {
      * This must be run <b>before</b> Hibernate is instantiated due to how Flyway operates.
      */
     private static void migrateDatabase() {
+        String url = Config.Config.hasPath("database.url")
+                ? Config.Config.getString("database.url")
+                : (String) new StandardServiceRegistryBuilder().configure().getSettings().get(AvailableSettings.URL);
+
         Flyway.configure()
-              .dataSource("jdbc:h2:./database;DB_CLOSE_DELAY=-1", "sa", null) // Use the same as in hibernate.cfg.xml
+              .dataSource(url, "sa", null) // Same URL and user as Database
               .load()
               .migrate();
     }
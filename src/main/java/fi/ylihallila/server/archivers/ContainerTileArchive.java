@@ -0,0 +1,126 @@
+package fi.ylihallila.server.archivers;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A {@link TileContainer} implementation of TileArchive. Tiles can't be added as links.
+ */
+public class ContainerTileArchive extends QueuedTileArchive {
+
+    private TileContainer.Writer writer;
+
+    private final File file;
+
+    /**
+     * Tiles recovered from a previous, interrupted archive.
+     */
+    private final Set<String> recoveredTiles = new HashSet<>();
+
+    /**
+     * @param resume if true and an archive of an interrupted tiling job exists, its complete tiles are kept
+     *               in this archive; see {@link #getRecoveredTiles()}.
+     */
+    public ContainerTileArchive(String slideName, int level, boolean resume) {
+        this.file = new File(slideName + "-level-" + level + "-tiles" + TileContainer.EXTENSION);
+
+        if (resume && file.exists()) {
+            recover();
+        } else {
+            create();
+        }
+    }
+
+    @Override
+    public boolean create() {
+        try {
+            writer = new TileContainer.Writer(file);
+        } catch (IOException e) {
+            logger.error("Error while creating tile container", e);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Copies every complete tile of the existing archive into a new archive. The existing archive
+     * may have been cut off in the middle of a tile, which is dropped.
+     */
+    private void recover() {
+        File partial = new File(file.getPath() + ".partial");
+
+        try {
+            Files.move(file.toPath(), partial.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.error("Error while recovering tile container", e);
+            create();
+            return;
+        }
+
+        create();
+
+        try (FileChannel channel = FileChannel.open(partial.toPath(), StandardOpenOption.READ)) {
+            for (TileContainer.Tile tile : TileContainer.scan(channel).getTiles()) {
+                ByteBuffer data = ByteBuffer.allocate(tile.getLength());
+
+                while (data.hasRemaining()) {
+                    if (channel.read(data, tile.getOffset() + data.position()) < 0) {
+                        throw new EOFException("Partial tile container ends in the middle of " + tile.getName());
+                    }
+                }
+
+                if (addTile(tile.getName(), data.array())) {
+                    recoveredTiles.add(tile.getName());
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Partial tile container {} could not be read", partial, e);
+        }
+
+        logger.debug("Recovered {} tiles from {}", recoveredTiles.size(), file);
+
+        try {
+            Files.deleteIfExists(partial.toPath());
+        } catch (IOException e) {
+            logger.error("Error while deleting partial tile container", e);
+        }
+    }
+
+    @Override
+    public Set<String> getRecoveredTiles() {
+        return recoveredTiles;
+    }
+
+    @Override
+    protected void write(Entry entry) throws IOException {
+        if (entry.getTarget() != null) {
+            throw new IOException("Tile containers don't support links");
+        }
+
+        writer.add(entry.getName(), entry.getData());
+    }
+
+    @Override
+    protected void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    protected void close() throws IOException {
+        writer.close();
+    }
+
+    @Override
+    protected File getFile() {
+        return file;
+    }
+}
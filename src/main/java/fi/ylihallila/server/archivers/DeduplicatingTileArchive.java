@@ -0,0 +1,202 @@
+package fi.ylihallila.server.archivers;
+
+import fi.ylihallila.server.storage.StorageProvider;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A TileArchive which stores identical tiles only once. Each tile is hashed; its payload is stored once in the
+ * content-addressed area of the {@link StorageProvider}, named by the hash, and the tile itself is added as a hard
+ * link to that content. Content which was already committed by an earlier slide is not added to the archive at all.
+ * <p>
+ * Links in an archive may only point to content committed earlier or added earlier to the same archive, as each
+ * archive is committed on its own.
+ */
+public class DeduplicatingTileArchive implements TileArchive {
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final TarTileArchive archive;
+    private final StorageProvider storage;
+    private final Statistics statistics;
+
+    /**
+     * Content names claimed by the tiles added to this archive. Completes once the content has been queued to the
+     * archive, or found in storage, with false if queuing it failed.
+     */
+    private final Map<String, CompletableFuture<Boolean>> contents = new ConcurrentHashMap<>();
+
+    /**
+     * @param archive archive the content and the links are added to.
+     * @param storage storage provider the archive is committed to; must support deduplication.
+     * @param statistics statistics of the slide, shared by the archives of its levels.
+     */
+    public DeduplicatingTileArchive(TarTileArchive archive, StorageProvider storage, Statistics statistics) {
+        this.archive = archive;
+        this.storage = storage;
+        this.statistics = statistics;
+
+        // Content recovered from an interrupted archive is already in it
+        for (String tile : archive.getRecoveredTiles()) {
+            contents.put(tile, CompletableFuture.completedFuture(true));
+        }
+    }
+
+    @Override
+    public boolean create() {
+        return archive.create();
+    }
+
+    @Override
+    public boolean addTile(String tileName, byte[] data) {
+        return addTile(tileName, data, null);
+    }
+
+    @Override
+    public boolean addTile(String tileName, byte[] data, Runnable written) {
+        String hash = hash(data);
+        String content = storage.getContentNamingFormat()
+            .replace("{prefix}", hash.substring(0, 2))
+            .replace("{hash}", hash) + getExtension(tileName);
+
+        // The first tile with this content claims it; the others wait until it has been queued, as the content
+        // must precede its first link in the archive
+        CompletableFuture<Boolean> claim = new CompletableFuture<>();
+        CompletableFuture<Boolean> claimed = contents.putIfAbsent(content, claim);
+        boolean stored = true;
+
+        if (claimed == null) {
+            try {
+                stored = storage.hasContent(content);
+                claim.complete(stored || archive.addTile(content, data));
+            } finally {
+                claim.complete(false);
+            }
+
+            claimed = claim;
+        }
+
+        if (!claimed.join()) {
+            return false;
+        }
+
+        if (!archive.addLink(tileName, content, written)) {
+            return false;
+        }
+
+        statistics.tileAdded(data.length, stored);
+
+        return true;
+    }
+
+    @Override
+    public File save() {
+        return archive.save();
+    }
+
+    public TarTileArchive getArchive() {
+        return archive;
+    }
+
+    private static String hash(byte[] data) {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+
+        byte[] hash = digest.digest(data);
+        char[] hex = new char[hash.length * 2];
+
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2]     = HEX[(hash[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+        }
+
+        return new String(hex);
+    }
+
+    private static String getExtension(String tileName) {
+        int dot = tileName.lastIndexOf('.');
+
+        return dot > tileName.lastIndexOf('/') ? tileName.substring(dot) : "";
+    }
+
+    /**
+     * Deduplication statistics of a slide.
+     */
+    public static class Statistics {
+
+        private final AtomicLong tiles = new AtomicLong();
+        private final AtomicLong duplicates = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong savedBytes = new AtomicLong();
+
+        private void tileAdded(int length, boolean duplicate) {
+            tiles.incrementAndGet();
+            bytes.addAndGet(length);
+
+            if (duplicate) {
+                duplicates.incrementAndGet();
+                savedBytes.addAndGet(length);
+            }
+        }
+
+        public long getTiles() {
+            return tiles.get();
+        }
+
+        /**
+         * @return number of tiles whose content was already stored.
+         */
+        public long getDuplicates() {
+            return duplicates.get();
+        }
+
+        /**
+         * @return total size of the tiles.
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * @return size of the tiles which didn't need to be stored or uploaded.
+         */
+        public long getSavedBytes() {
+            return savedBytes.get();
+        }
+
+        /**
+         * @return ratio of the size of the tiles to the size actually stored; 1 when nothing was deduplicated.
+         */
+        public double getRatio() {
+            long stored = getBytes() - getSavedBytes();
+
+            return stored > 0 ? (double) getBytes() / stored : 1;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("tiles", getTiles());
+            map.put("duplicateTiles", getDuplicates());
+            map.put("bytes", getBytes());
+            map.put("savedBytes", getSavedBytes());
+            map.put("ratio", Math.round(getRatio() * 100) / 100.0);
+
+            return map;
+        }
+    }
+}
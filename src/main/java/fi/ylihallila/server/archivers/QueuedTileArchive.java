@@ -0,0 +1,256 @@
+package fi.ylihallila.server.archivers;
+
+import fi.ylihallila.server.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A TileArchive which is written by a single writer. Tiles are added to a lock-free queue by any number of threads
+ * and written to the archive in the order they were queued by one writer at a time, which runs only while the queue
+ * has entries. Adding a tile only waits when {@link #MAX_QUEUED_BYTES} are already waiting to be written.
+ * <p>
+ * A tile which couldn't be written fails the archive: the tiles added after it are discarded and {@link #save()}
+ * returns null.
+ */
+public abstract class QueuedTileArchive implements TileArchive {
+
+    /**
+     * Size of the tiles which may wait to be written, per archive.
+     */
+    public static final int MAX_QUEUED_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * Size of the buffer between the archive and its file.
+     */
+    protected static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Number of entries written between flushes while the queue doesn't run empty.
+     */
+    private static final int FLUSH_ENTRIES = 256;
+
+    private static final ExecutorService WRITERS = new ThreadPoolExecutor(
+        0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<>(),
+        runnable -> {
+            Thread thread = new NamedThreadFactory("tile-writer").newThread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        }
+    );
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final Semaphore queuedBytes = new Semaphore(MAX_QUEUED_BYTES);
+
+    private volatile IOException error;
+
+    @Override
+    public boolean addTile(String tileName, byte[] data) {
+        return enqueue(new Entry(tileName, data, null, null));
+    }
+
+    @Override
+    public boolean addTile(String tileName, byte[] data, Runnable written) {
+        return enqueue(new Entry(tileName, data, null, written));
+    }
+
+    /**
+     * Queues an entry to be written.
+     *
+     * @return false if the archive has failed.
+     */
+    protected boolean enqueue(Entry entry) {
+        if (error != null) {
+            return false;
+        }
+
+        queuedBytes.acquireUninterruptibly(entry.getPermits());
+        queue.offer(entry);
+
+        if (writing.compareAndSet(false, true)) {
+            WRITERS.execute(this::write);
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes queued entries until the queue is empty. Entries queued while the writer is stopping are written by
+     * the writer started by the thread which queued them, unless this writer takes them first.
+     * <p>
+     * Entries are reported as written once the archive has been flushed to its file, which happens whenever the
+     * queue runs empty or {@link #FLUSH_ENTRIES} entries have been written.
+     */
+    private void write() {
+        List<Runnable> written = new ArrayList<>();
+
+        do {
+            Entry entry;
+
+            while ((entry = queue.poll()) != null) {
+                try {
+                    if (error == null) {
+                        write(entry);
+
+                        if (entry.written != null) {
+                            written.add(entry.written);
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.error("Error while adding {} to archive", entry.getName(), e);
+                    error = e;
+                } finally {
+                    queuedBytes.release(entry.getPermits());
+                }
+
+                if (written.size() >= FLUSH_ENTRIES) {
+                    flushWritten(written);
+                }
+            }
+
+            flushWritten(written);
+            writing.set(false);
+
+            synchronized (writing) {
+                writing.notifyAll();
+            }
+        } while (!queue.isEmpty() && writing.compareAndSet(false, true));
+    }
+
+    /**
+     * Flushes the archive to its file and reports the entries written since the last flush as written.
+     */
+    private void flushWritten(List<Runnable> written) {
+        if (written.isEmpty() || error != null) {
+            written.clear();
+            return;
+        }
+
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.error("Error while flushing archive {}", getFile(), e);
+            error = e;
+            written.clear();
+            return;
+        }
+
+        for (Runnable runnable : written) {
+            runnable.run();
+        }
+
+        written.clear();
+    }
+
+    /**
+     * Waits until every queued entry has been written. An interrupt doesn't stop the wait, as the archive can't be
+     * closed while the writer is still using it; the interrupt status is restored once the writer has finished.
+     */
+    private void awaitWritten() {
+        boolean interrupted = false;
+
+        synchronized (writing) {
+            while (writing.get() || !queue.isEmpty()) {
+                try {
+                    writing.wait(100);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the queued tiles and closes the archive. No tiles may be added after this.
+     */
+    @Override
+    public File save() {
+        awaitWritten();
+
+        try {
+            close();
+        } catch (IOException e) {
+            logger.error("Error while saving archive", e);
+            return null;
+        }
+
+        if (error != null) {
+            logger.error("Archive {} is missing tiles", getFile());
+            return null;
+        }
+
+        return getFile();
+    }
+
+    /**
+     * Writes an entry to the archive; called by one thread at a time.
+     */
+    protected abstract void write(Entry entry) throws IOException;
+
+    /**
+     * Flushes the entries written so far to the archive file; called by the writer.
+     */
+    protected abstract void flush() throws IOException;
+
+    protected abstract void close() throws IOException;
+
+    protected abstract File getFile();
+
+    /**
+     * A tile, or a link to an earlier entry if target isn't null.
+     */
+    protected static class Entry {
+
+        private final String name;
+        private final byte[] data;
+        private final String target;
+
+        /**
+         * Run once the entry has been written, or null.
+         */
+        private final Runnable written;
+
+        protected Entry(String name, byte[] data, String target, Runnable written) {
+            this.name = name;
+            this.data = data;
+            this.target = target;
+            this.written = written;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        private int getPermits() {
+            return data == null ? 0 : Math.min(Math.max(data.length, 1), MAX_QUEUED_BYTES);
+        }
+    }
+}
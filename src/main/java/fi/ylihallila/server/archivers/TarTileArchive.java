@@ -1,35 +1,54 @@
 package fi.ylihallila.server.archivers;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
 import org.apache.commons.compress.utils.IOUtils;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * A .tar implementation of TileArchive. This class doesn't utilize any compression methods.
  */
-public class TarTileArchive implements TileArchive {
-
-    private final Logger logger = LoggerFactory.getLogger(getClass());
+public class TarTileArchive extends QueuedTileArchive {
 
     private TarArchiveOutputStream tarOs;
 
     private final File file;
 
+    /**
+     * Tiles recovered from a previous, interrupted archive.
+     */
+    private final Set<String> recoveredTiles = new HashSet<>();
+
     public TarTileArchive(String slideName, int level) {
+        this(slideName, level, false);
+    }
+
+    /**
+     * @param resume if true and an archive of an interrupted tiling job exists, its complete tiles are kept
+     *               in this archive; see {@link #getRecoveredTiles()}.
+     */
+    public TarTileArchive(String slideName, int level, boolean resume) {
         this.file = new File(slideName + "-level-" + level + "-tiles.tar");
 
-        create();
+        if (resume && file.exists()) {
+            recover();
+        } else {
+            create();
+        }
     }
 
     @Override
     public boolean create() {
         try {
-            FileOutputStream fos = new FileOutputStream(file);
-            tarOs = new TarArchiveOutputStream(fos);
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+            tarOs = new TarArchiveOutputStream(os);
         } catch (FileNotFoundException e) {
             logger.error("Error while creating Tar archive", e);
             return false;
@@ -38,36 +57,115 @@ public class TarTileArchive implements TileArchive {
         return true;
     }
 
-    @Override
-    public synchronized boolean addTile(String tileName, byte[] data) {
+    /**
+     * Copies every complete tile of the existing archive into a new archive. The existing archive
+     * may have been cut off in the middle of a tile, which is dropped.
+     */
+    private void recover() {
+        File partial = new File(file.getPath() + ".partial");
+
         try {
-            TarArchiveEntry entry = new TarArchiveEntry(tileName);
-            entry.setSize(data.length);
+            Files.move(file.toPath(), partial.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.error("Error while recovering Tar archive", e);
+            create();
+            return;
+        }
 
-            tarOs.putArchiveEntry(entry);
+        create();
 
-            ByteArrayInputStream is = new ByteArrayInputStream(data);
-            IOUtils.copy(is, tarOs);
-            is.close();
+        try (TarArchiveInputStream tarIs = new TarArchiveInputStream(new BufferedInputStream(new FileInputStream(partial)))) {
+            TarArchiveEntry entry;
 
-            tarOs.closeArchiveEntry();
+            while ((entry = tarIs.getNextTarEntry()) != null) {
+                if (entry.isLink()) {
+                    if (addLink(entry.getName(), entry.getLinkName())) {
+                        recoveredTiles.add(entry.getName());
+                    }
+
+                    continue;
+                }
+
+                byte[] data = IOUtils.toByteArray(tarIs);
+
+                if (data.length != entry.getSize()) {
+                    break;
+                }
+
+                if (addTile(entry.getName(), data)) {
+                    recoveredTiles.add(entry.getName());
+                }
+            }
         } catch (IOException e) {
-            logger.error("Error while adding {} to archive", tileName, e);
-            return false;
+            logger.debug("Partial Tar archive {} ends with an incomplete tile", partial);
         }
 
-        return true;
-    }
+        logger.debug("Recovered {} tiles from {}", recoveredTiles.size(), file);
 
-    @Override
-    public File save() {
         try {
-            tarOs.close();
+            Files.deleteIfExists(partial.toPath());
         } catch (IOException e) {
-            logger.error("Error while saving Tar archive", e);
-            return null;
+            logger.error("Error while deleting partial Tar archive", e);
+        }
+    }
+
+    @Override
+    public Set<String> getRecoveredTiles() {
+        return recoveredTiles;
+    }
+
+    /**
+     * Adds a tile as a hard link to an earlier entry of the archive or a file already in storage.
+     *
+     * @param tileName tile name.
+     * @param target name of the file the tile links to.
+     * @return true if success.
+     */
+    public boolean addLink(String tileName, String target) {
+        return enqueue(new Entry(tileName, null, target, null));
+    }
+
+    /**
+     * Adds a tile as a hard link like {@link #addLink(String, String)} and runs <code>written</code> once the
+     * link has been written.
+     */
+    public boolean addLink(String tileName, String target, Runnable written) {
+        return enqueue(new Entry(tileName, null, target, written));
+    }
+
+    @Override
+    protected void write(Entry entry) throws IOException {
+        TarArchiveEntry tarEntry;
+
+        if (entry.getTarget() != null) {
+            tarEntry = new TarArchiveEntry(entry.getName(), TarConstants.LF_LINK);
+            tarEntry.setLinkName(entry.getTarget());
+        } else {
+            tarEntry = new TarArchiveEntry(entry.getName());
+            tarEntry.setSize(entry.getData().length);
         }
 
+        tarOs.putArchiveEntry(tarEntry);
+
+        if (entry.getData() != null) {
+            tarOs.write(entry.getData());
+        }
+
+        tarOs.closeArchiveEntry();
+    }
+
+    @Override
+    protected void flush() throws IOException {
+        tarOs.flush();
+    }
+
+    @Override
+    protected void close() throws IOException {
+        tarOs.close();
+    }
+
+    @Override
+    protected File getFile() {
         return file;
     }
 }
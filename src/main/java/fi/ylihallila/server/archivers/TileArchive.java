@@ -1,6 +1,7 @@
 package fi.ylihallila.server.archivers;
 
 import java.io.File;
+import java.util.Set;
 
 /**
  * Represents a archive of tiles.
@@ -23,6 +24,45 @@ public interface TileArchive {
      */
     boolean addTile(String tileName, byte[] data);
 
+    /**
+     * Adds a tile to the archive and runs <code>written</code> once the tile is in the archive file, which may be
+     * after this method has returned.
+     *
+     * @param tileName tile name.
+     * @param data data to insert.
+     * @param written run once the tile has been written, or null; not run if writing it fails.
+     * @return true if the tile was accepted.
+     */
+    default boolean addTile(String tileName, byte[] data, Runnable written) {
+        if (addTile(tileName, data)) {
+            if (written != null) {
+                written.run();
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds a tile like {@link #addTile(String, byte[], Runnable)} along with its CRC-32, computed by the caller
+     * when the archive is {@link #isChecksummed()}.
+     *
+     * @param crc CRC-32 of <code>data</code>.
+     */
+    default boolean addTile(String tileName, byte[] data, long crc, Runnable written) {
+        return addTile(tileName, data, written);
+    }
+
+    /**
+     * @return true if the archive stores the CRC-32 of each tile, so that the caller should compute it and add
+     *         the tile with {@link #addTile(String, byte[], long, Runnable)}.
+     */
+    default boolean isChecksummed() {
+        return false;
+    }
+
     /**
      * Saves the archive to disk.
      *
@@ -30,4 +70,12 @@ public interface TileArchive {
      */
     File save();
 
+    /**
+     * @return names of the tiles recovered from the archive of an interrupted tiling job; empty if the archive
+     *         was created from scratch or doesn't support resuming.
+     */
+    default Set<String> getRecoveredTiles() {
+        return Set.of();
+    }
+
 }
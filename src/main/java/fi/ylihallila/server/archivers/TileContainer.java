@@ -0,0 +1,624 @@
+package fi.ylihallila.server.archivers;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A single file holding the tiles of a slide. The file starts with a header, followed by segments which are only
+ * ever appended. Each segment is a run of tile records, an index of the tiles of the segment, sorted by name, and
+ * a trailer pointing to the index:
+ * <pre>
+ * header:  int magic, int version
+ * record:  byte 'T', short name length, name, int data length, data
+ * index:   byte 'I', long segment offset, int tiles in the file, int count, int[count] entry positions,
+ *          entries of short name length, name, long offset, int length
+ * trailer: long index offset, int magic
+ * </pre>
+ * The segment offset is the end of the previous segment, which ends with its trailer, so readers follow the
+ * indexes from the last trailer back to the first segment. A segment being appended is invisible until its
+ * trailer is written. A tile appended again replaces the earlier one, as the indexes are searched from the last;
+ * the earlier data is left in the file.
+ * <p>
+ * The archive of a level is a container of one segment, which is appended to the container of the slide when the
+ * level is committed.
+ */
+public class TileContainer {
+
+    public static final String EXTENSION = ".container";
+
+    private static final int MAGIC = 0x4F4D5443;
+    private static final int TRAILER_MAGIC = 0x4F4D5449;
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int INDEX_HEADER_SIZE = 1 + 8 + 4 + 4;
+    private static final int TRAILER_SIZE = 12;
+
+    private static final byte RECORD = 'T';
+    private static final byte INDEX = 'I';
+
+    /**
+     * Containers being appended to by this process, so that levels committed at the same time are appended one
+     * after another; the file lock only excludes other processes.
+     */
+    private static final Map<Path, Object> LOCKS = new ConcurrentHashMap<>();
+
+    /**
+     * Location of the data of a tile in a container.
+     */
+    public static class Tile {
+
+        private final String name;
+        private final long offset;
+        private final int length;
+
+        private Tile(String name, long offset, int length) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * Writes a new segment to a container.
+     */
+    public static class Writer implements Closeable {
+
+        private final DataOutputStream out;
+        private final Map<String, Tile> tiles = new TreeMap<>();
+        private final Reader previous;
+        private final long start;
+        private long position;
+
+        /**
+         * Creates a new container.
+         */
+        public Writer(File file) throws IOException {
+            this(new FileOutputStream(file), 0, null);
+        }
+
+        /**
+         * @param position position of the stream in the container; the header is written at 0.
+         * @param previous segments already in the container, or null if it has none.
+         */
+        private Writer(OutputStream os, long position, Reader previous) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(os, 1024 * 1024));
+            this.position = position;
+            this.previous = previous;
+
+            if (position == 0) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                this.position = HEADER_SIZE;
+            }
+
+            this.start = this.position;
+        }
+
+        public void add(String name, byte[] data) throws IOException {
+            add(name, new ByteArrayInputStream(data), data.length);
+        }
+
+        private void add(String name, InputStream data, int length) throws IOException {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+
+            out.writeByte(RECORD);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+            out.writeInt(length);
+
+            long offset = position + 1 + 2 + bytes.length + 4;
+
+            if (data.transferTo(out) != length) {
+                throw new EOFException("Tile " + name + " is shorter than " + length + " bytes");
+            }
+
+            tiles.put(name, new Tile(name, offset, length));
+            position = offset + length;
+        }
+
+        /**
+         * Flushes the tiles added so far to the container.
+         */
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        /**
+         * Writes the index and the trailer, which completes the segment.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                writeIndex();
+                writeTrailer();
+            } finally {
+                out.close();
+            }
+        }
+
+        private void writeIndex() throws IOException {
+            List<byte[]> names = new ArrayList<>(tiles.size());
+            int total = tiles.size();
+
+            if (previous != null) {
+                total += previous.getTileCount();
+
+                for (String name : tiles.keySet()) {
+                    if (previous.find(name) != null) {
+                        total--;
+                    }
+                }
+            }
+
+            out.writeByte(INDEX);
+            out.writeLong(start);
+            out.writeInt(total);
+            out.writeInt(tiles.size());
+
+            int entryPosition = 0;
+
+            for (String name : tiles.keySet()) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                names.add(bytes);
+
+                out.writeInt(entryPosition);
+                entryPosition += 2 + bytes.length + 8 + 4;
+            }
+
+            Iterator<byte[]> name = names.iterator();
+
+            for (Tile tile : tiles.values()) {
+                byte[] bytes = name.next();
+
+                out.writeShort(bytes.length);
+                out.write(bytes);
+                out.writeLong(tile.getOffset());
+                out.writeInt(tile.getLength());
+            }
+
+            out.flush();
+        }
+
+        /**
+         * Writes the trailer pointing to the index written at the position of this writer.
+         */
+        private void writeTrailer() throws IOException {
+            out.writeLong(position);
+            out.writeInt(TRAILER_MAGIC);
+            out.flush();
+        }
+    }
+
+    /**
+     * Reads tiles from a container using the indexes of its complete segments. The indexes are memory-mapped and
+     * searched in place, from the last segment, and tiles are read with positional reads, so a reader may be shared
+     * by several threads.
+     */
+    public static class Reader implements Closeable {
+
+        private final FileChannel channel;
+        private final long size;
+
+        /**
+         * Index of each segment, from the last one.
+         */
+        private final List<MappedByteBuffer> indexes;
+        private final int count;
+
+        private Reader(FileChannel channel, long size, List<MappedByteBuffer> indexes) {
+            this.channel = channel;
+            this.size = size;
+            this.indexes = indexes;
+            this.count = indexes.get(0).getInt(1 + 8);
+        }
+
+        /**
+         * @throws IOException if the container can't be read or its last segment is incomplete.
+         */
+        public static Reader open(Path file) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+            try {
+                Reader reader = map(channel, channel.size());
+
+                if (reader == null) {
+                    throw new IOException("Container " + file + " has no complete segment");
+                }
+
+                return reader;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Maps the indexes of the segments which end before <code>size</code>.
+         *
+         * @return null if the container doesn't end with a complete segment at <code>size</code>.
+         */
+        private static Reader map(FileChannel channel, long size) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    return null;
+                }
+            }
+
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a tile container");
+            }
+
+            List<MappedByteBuffer> indexes = new ArrayList<>();
+            long end = size;
+            long indexOffset;
+
+            while ((indexOffset = readTrailer(channel, end)) >= 0) {
+                MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, end - TRAILER_SIZE - indexOffset);
+
+                if (index.get(0) != INDEX || index.getLong(1) < HEADER_SIZE || index.getLong(1) > indexOffset) {
+                    throw new IOException("Container has an invalid index at " + indexOffset);
+                }
+
+                indexes.add(index);
+                end = index.getLong(1);
+            }
+
+            return indexes.isEmpty() ? null : new Reader(channel, size, indexes);
+        }
+
+        /**
+         * @return the location of the tile or null if the container doesn't have it.
+         */
+        public Tile find(String name) {
+            for (MappedByteBuffer index : indexes) {
+                Tile tile = find(index, name);
+
+                if (tile != null) {
+                    return tile;
+                }
+            }
+
+            return null;
+        }
+
+        private static Tile find(MappedByteBuffer index, String name) {
+            int count = index.getInt(INDEX_HEADER_SIZE - 4);
+            int entries = INDEX_HEADER_SIZE + count * 4;
+            int low = 0;
+            int high = count - 1;
+
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int position = entries + index.getInt(INDEX_HEADER_SIZE + middle * 4);
+
+                byte[] bytes = new byte[index.getShort(position) & 0xFFFF];
+                index.get(position + 2, bytes);
+
+                int comparison = new String(bytes, StandardCharsets.UTF_8).compareTo(name);
+
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
+                } else {
+                    position += 2 + bytes.length;
+
+                    return new Tile(name, index.getLong(position), index.getInt(position + 8));
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * @return the data of the tile or null if the container doesn't have it.
+         */
+        public byte[] read(String name) throws IOException {
+            Tile tile = find(name);
+
+            return tile == null ? null : read(tile);
+        }
+
+        /**
+         * @param tile location of a tile found with {@link #find(String)}.
+         * @return the data of the tile.
+         */
+        public byte[] read(Tile tile) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(tile.getLength());
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, tile.getOffset() + buffer.position()) < 0) {
+                    throw new EOFException("Container ends in the middle of " + tile.getName());
+                }
+            }
+
+            return buffer.array();
+        }
+
+        /**
+         * @return number of tiles in the container; a tile appended more than once is counted once.
+         */
+        public int getTileCount() {
+            return count;
+        }
+
+        /**
+         * @return size of the container when this reader was opened; segments appended since aren't visible.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Result of scanning a container, which may have been cut off.
+     */
+    public static class Scan {
+
+        private final List<Tile> tiles;
+        private final long end;
+
+        private Scan(List<Tile> tiles, long end) {
+            this.tiles = tiles;
+            this.end = end;
+        }
+
+        /**
+         * @return complete records in the order they were written, including those of an incomplete segment.
+         */
+        public List<Tile> getTiles() {
+            return tiles;
+        }
+
+        /**
+         * @return end of the last complete segment or of the header if there is none.
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * @return tiles of the complete segments; of the tiles appended more than once, the last.
+         */
+        public Map<String, Tile> getIndex() {
+            Map<String, Tile> index = new TreeMap<>();
+
+            for (Tile tile : tiles) {
+                if (tile.getOffset() < end) {
+                    index.put(tile.getName(), tile);
+                }
+            }
+
+            return index;
+        }
+    }
+
+    /**
+     * Reads every record of a container, stopping at the first incomplete or invalid one.
+     */
+    public static Scan scan(FileChannel channel) throws IOException {
+        List<Tile> tiles = new ArrayList<>();
+        long end = HEADER_SIZE;
+
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a tile container");
+            }
+
+            long position = HEADER_SIZE;
+            long size = channel.size();
+
+            while (position < size) {
+                byte type = in.readByte();
+
+                if (type == RECORD) {
+                    byte[] name = in.readNBytes(in.readUnsignedShort());
+                    int length = in.readInt();
+                    long offset = position + 1 + 2 + name.length + 4;
+
+                    if (length < 0 || offset + length > size) {
+                        break;
+                    }
+
+                    in.skipNBytes(length);
+                    tiles.add(new Tile(new String(name, StandardCharsets.UTF_8), offset, length));
+                    position = offset + length;
+                } else if (type == INDEX) {
+                    long indexOffset = position;
+
+                    in.skipNBytes(8 + 4);
+                    int count = in.readInt();
+
+                    in.skipNBytes(count * 4L);
+                    position += INDEX_HEADER_SIZE + count * 4L;
+
+                    for (int i = 0; i < count; i++) {
+                        int length = in.readUnsignedShort();
+                        in.skipNBytes(length + 12);
+                        position += 2 + length + 12;
+                    }
+
+                    if (in.readLong() != indexOffset || in.readInt() != TRAILER_MAGIC) {
+                        break;
+                    }
+
+                    position += TRAILER_SIZE;
+                    end = position;
+                } else {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // The container was cut off; everything read so far is complete
+        }
+
+        return new Scan(tiles, end);
+    }
+
+    /**
+     * Appends the tiles of a container, such as the archive of a level, to another container as a new segment.
+     * Only the new tiles are indexed, so the existing segments are not read, except to find the end of the last
+     * complete one when an interrupted append left an incomplete segment at the end of the container, which is
+     * discarded first.
+     *
+     * @param container container to append to; created if it doesn't exist.
+     * @param segment container whose tiles are appended.
+     * @param prefix prefix removed from the names of the appended tiles, such as the id of the slide.
+     */
+    public static void append(Path container, Path segment, String prefix) throws IOException {
+        synchronized (LOCKS.computeIfAbsent(container.toAbsolutePath().normalize(), path -> new Object())) {
+            try (FileChannel source = FileChannel.open(segment, StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(container, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+                // Tiler workers may append to the same container from other processes
+                target.lock();
+
+                Scan appended = scan(source);
+                Reader previous = null;
+                long end = 0;
+
+                if (target.size() >= HEADER_SIZE) {
+                    end = target.size();
+                    previous = Reader.map(target, end);
+
+                    if (previous == null) {
+                        end = scan(target).getEnd();
+                        previous = Reader.map(target, end);
+                    }
+                }
+
+                target.truncate(end);
+                target.position(end);
+
+                // Not closed, as that would close the container before it has been forced to disk
+                Writer writer = new Writer(Channels.newOutputStream(target), end, previous);
+                InputStream in = new BufferedInputStream(Channels.newInputStream(source), 1024 * 1024);
+                long position = 0;
+
+                source.position(0);
+
+                for (Tile tile : appended.getTiles()) {
+                    if (tile.getOffset() >= appended.getEnd()) {
+                        break;
+                    }
+
+                    in.skipNBytes(tile.getOffset() - position);
+                    position = tile.getOffset() + tile.getLength();
+
+                    String name = tile.getName().startsWith(prefix) ? tile.getName().substring(prefix.length()) : tile.getName();
+                    writer.add(name, new BoundedInputStream(in, tile.getLength()), tile.getLength());
+                }
+
+                writer.writeIndex();
+                target.force(true);
+
+                // The trailer is written last, so that readers never see an index which isn't on disk yet
+                writer.writeTrailer();
+                target.force(true);
+            }
+        }
+    }
+
+    /**
+     * @return the offset of the index of the last segment or -1 if the container doesn't end with a trailer.
+     */
+    private static long readTrailer(FileChannel channel, long size) throws IOException {
+        if (size < HEADER_SIZE + TRAILER_SIZE) {
+            return -1;
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+
+        while (trailer.hasRemaining()) {
+            if (channel.read(trailer, size - TRAILER_SIZE + trailer.position()) < 0) {
+                return -1;
+            }
+        }
+
+        long indexOffset = trailer.getLong(0);
+
+        if (trailer.getInt(8) != TRAILER_MAGIC || indexOffset < HEADER_SIZE || indexOffset >= size - TRAILER_SIZE) {
+            return -1;
+        }
+
+        return indexOffset;
+    }
+
+    /**
+     * Reads the next length bytes of a stream without closing it.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        private BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int b = in.read();
+
+            if (b >= 0) {
+                remaining--;
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+
+            if (read > 0) {
+                remaining -= read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -1,70 +1,171 @@
 package fi.ylihallila.server.archivers;
 
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.apache.commons.compress.utils.IOUtils;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.io.*;
-
-public class ZipTileArchive implements TileArchive {
-
-    private final Logger logger = LoggerFactory.getLogger(getClass());
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A .zip implementation of TileArchive. Tiles are already compressed, so they are stored as is, with the STORED
+ * method. The checksum of each tile is computed by the encode stage of the tiling pipeline, see
+ * {@link #isChecksummed()}, so the writer only copies the tiles into the archive.
+ */
+public class ZipTileArchive extends QueuedTileArchive {
 
     private ZipArchiveOutputStream zipOs;
 
     private final File file;
 
+    /**
+     * Tiles recovered from a previous, interrupted archive.
+     */
+    private final Set<String> recoveredTiles = new HashSet<>();
+
     public ZipTileArchive(String slideName, int level) {
+        this(slideName, level, false);
+    }
+
+    /**
+     * @param resume if true and an archive of an interrupted tiling job exists, its complete tiles are kept
+     *               in this archive; see {@link #getRecoveredTiles()}.
+     */
+    public ZipTileArchive(String slideName, int level, boolean resume) {
         this.file = new File(slideName + "-level-" + level + "-tiles.zip");
 
-        create();
+        if (resume && file.exists()) {
+            recover();
+        } else {
+            create();
+        }
     }
 
     @Override
     public boolean create() {
         try {
-            FileOutputStream fos = new FileOutputStream(file);
-            zipOs = new ZipArchiveOutputStream(fos);
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+            zipOs = new ZipArchiveOutputStream(os);
+            zipOs.setMethod(ZipArchiveOutputStream.STORED);
         } catch (FileNotFoundException e) {
-            logger.error("Error while creating Tar archive", e);
+            logger.error("Error while creating Zip archive", e);
             return false;
         }
 
         return true;
     }
 
-    @Override
-    public synchronized boolean addTile(String tileName, byte[] data) {
+    /**
+     * Copies every complete tile of the existing archive into a new archive. The existing archive has no central
+     * directory and may have been cut off in the middle of a tile, which is dropped.
+     */
+    private void recover() {
+        File partial = new File(file.getPath() + ".partial");
+
         try {
-            ZipArchiveEntry entry = new ZipArchiveEntry(tileName);
-            entry.setSize(data.length);
+            Files.move(file.toPath(), partial.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.error("Error while recovering Zip archive", e);
+            create();
+            return;
+        }
+
+        create();
 
-            zipOs.putArchiveEntry(entry);
+        try (ZipArchiveInputStream zipIs = new ZipArchiveInputStream(new BufferedInputStream(new FileInputStream(partial)))) {
+            ZipArchiveEntry entry;
 
-            ByteArrayInputStream is = new ByteArrayInputStream(data);
-            IOUtils.copy(is, zipOs);
-            is.close();
+            while ((entry = zipIs.getNextZipEntry()) != null) {
+                byte[] data = IOUtils.toByteArray(zipIs);
 
-            zipOs.closeArchiveEntry();
+                if (data.length != entry.getSize()) {
+                    break;
+                }
+
+                if (addTile(entry.getName(), data, entry.getCrc(), null)) {
+                    recoveredTiles.add(entry.getName());
+                }
+            }
         } catch (IOException e) {
-            logger.error("Error while adding {} to archive", tileName, e);
-            return false;
+            logger.debug("Partial Zip archive {} ends with an incomplete tile", partial);
         }
 
-        return true;
-    }
+        logger.debug("Recovered {} tiles from {}", recoveredTiles.size(), file);
 
-    @Override
-    public File save() {
         try {
-            zipOs.close();
+            Files.deleteIfExists(partial.toPath());
         } catch (IOException e) {
-            logger.error("Error while saving Tar archive", e);
-            return null;
+            logger.error("Error while deleting partial Zip archive", e);
         }
+    }
+
+    @Override
+    public Set<String> getRecoveredTiles() {
+        return recoveredTiles;
+    }
+
+    @Override
+    public boolean isChecksummed() {
+        return true;
+    }
 
+    @Override
+    public boolean addTile(String tileName, byte[] data) {
+        return addTile(tileName, data, null);
+    }
+
+    @Override
+    public boolean addTile(String tileName, byte[] data, Runnable written) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        return addTile(tileName, data, crc.getValue(), written);
+    }
+
+    @Override
+    public boolean addTile(String tileName, byte[] data, long crc, Runnable written) {
+        return enqueue(new StoredEntry(tileName, data, crc, written));
+    }
+
+    @Override
+    protected void write(Entry entry) throws IOException {
+        ZipArchiveEntry zipEntry = new ZipArchiveEntry(entry.getName());
+        zipEntry.setMethod(ZipArchiveEntry.STORED);
+        zipEntry.setSize(entry.getData().length);
+        zipEntry.setCompressedSize(entry.getData().length);
+        zipEntry.setCrc(((StoredEntry) entry).crc);
+
+        // Written raw, so that the checksum isn't computed again while writing
+        zipOs.addRawArchiveEntry(zipEntry, new ByteArrayInputStream(entry.getData()));
+    }
+
+    @Override
+    protected void flush() throws IOException {
+        zipOs.flush();
+    }
+
+    @Override
+    protected void close() throws IOException {
+        zipOs.close();
+    }
+
+    @Override
+    protected File getFile() {
         return file;
     }
+
+    private static class StoredEntry extends Entry {
+
+        private final long crc;
+
+        private StoredEntry(String name, byte[] data, long crc, Runnable written) {
+            super(name, data, null, written);
+            this.crc = crc;
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package fi.ylihallila.server.controllers;
 
+import fi.ylihallila.server.Application;
 import fi.ylihallila.server.models.ServerConfiguration;
 import io.javalin.http.Context;
 import io.javalin.plugin.openapi.annotations.OpenApi;
@@ -27,4 +28,13 @@ public class ServerController extends Controller {
 
         ctx.status(200).json(configuration);
     }
+
+    @OpenApi(
+        summary = "Returns the tiling queue: slides being tiled with their progress, queued slides and the load of the tiling pipeline",
+        tags = { "server" },
+        responses = @OpenApiResponse(status = "200")
+    )
+    public void tiler(@NotNull Context ctx) {
+        ctx.status(200).json(Application.getInstance().getTiler().getQueue());
+    }
 }
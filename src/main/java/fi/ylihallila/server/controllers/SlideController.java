@@ -5,8 +5,10 @@ import fi.ylihallila.server.authentication.Authenticator;
 import fi.ylihallila.server.commons.Roles;
 import fi.ylihallila.server.exceptions.UnprocessableEntityResponse;
 import fi.ylihallila.server.generators.Tiler;
+import fi.ylihallila.server.generators.TilingOptions;
 import fi.ylihallila.server.models.Slide;
 import fi.ylihallila.server.models.User;
+import fi.ylihallila.server.util.Config;
 import fi.ylihallila.server.util.Constants;
 import fi.ylihallila.server.util.OpenSlideCache;
 import fi.ylihallila.server.util.Util;
@@ -218,15 +220,28 @@ public class SlideController extends Controller implements CrudHandler {
 		pathParams = {
 			@OpenApiParam(name = "id", required = true)
 		},
+		queryParams = {
+			@OpenApiParam(name = "encoder", description = "Tile encoder: jpeg, jpeg-optimized or png. Defaults to the encoder of the storage provider."),
+			@OpenApiParam(name = "tileSize", type = Integer.class, description = "Size of the tile grid. Defaults to tiler.tiles.size."),
+			@OpenApiParam(name = "overlap", type = Integer.class, description = "Overlap of neighbouring tiles; deepzoom layout only. Defaults to tiler.tiles.overlap."),
+			@OpenApiParam(name = "layout", description = "Pyramid layout: openslide or deepzoom. Defaults to tiler.tiles.layout.")
+		},
 		responses = {
 			@OpenApiResponse(status = "200"),
 			@OpenApiResponse(status = "403"),
 			@OpenApiResponse(status = "404"),
+			@OpenApiResponse(status = "422"),
 		}
 	)
 	public void tile(@NotNull Context ctx) {
 		String id = ctx.pathParam("id", String.class).get();
 		Path path = Path.of(String.format(Constants.PENDING_SLIDES, id));
+		TilingOptions options = new TilingOptions(
+			ctx.queryParam("encoder"),
+			ctx.queryParamMap().containsKey("tileSize") ? ctx.queryParam("tileSize", Integer.class).get() : null,
+			ctx.queryParamMap().containsKey("overlap")  ? ctx.queryParam("overlap", Integer.class).get()  : null,
+			ctx.queryParam("layout")
+		);
 
 		User user = Authenticator.getUser(ctx);
 		Session session = ctx.use(Session.class);
@@ -241,21 +256,63 @@ public class SlideController extends Controller implements CrudHandler {
 			throw new ForbiddenResponse();
 		}
 
+		Tiler tiler = Application.getInstance().getTiler();
+		String invalid = options.withDefaults(Config.Config.getString("storage.provider").toLowerCase()).validate(tiler.getMaxTileSize());
+
+		if (invalid != null) {
+			throw new UnprocessableEntityResponse(invalid);
+		}
+
 		if (!(path.toFile().exists())) {
 			throw new UnprocessableEntityResponse("Original slide not found; try retrying later or re-uploading slide.");
 		}
 
-		Tiler tiler = Application.getInstance().getTiler();
-
 		if (tiler.isAlreadyQueued(path)) {
 			throw new UnprocessableEntityResponse("Slide already queued for processing.");
 		}
 
-		tiler.addSlideToTilerQueue(path);
+		tiler.addSlideToTilerQueue(path, Tiler.Priority.HIGH, slide.getOwner().getId(), options);
 
 		ctx.status(200).json(Map.of("Message", "Successfully added to tiling queue."));
 	}
 
+	@OpenApi(
+		tags = { "slide" },
+		summary = "Get the tiling status of given slide, including progress, throughput and estimated time remaining while it is being tiled",
+		pathParams = {
+			@OpenApiParam(name = "id", required = true)
+		},
+		responses = {
+			@OpenApiResponse(status = "200"),
+			@OpenApiResponse(status = "403"),
+			@OpenApiResponse(status = "404"),
+		}
+	)
+	public void tileStatus(@NotNull Context ctx) {
+		String id = ctx.pathParam("id", String.class).get();
+
+		User user = Authenticator.getUser(ctx);
+		Session session = ctx.use(Session.class);
+
+		Slide slide = session.find(Slide.class, id);
+
+		if (slide == null) {
+			throw new NotFoundResponse();
+		}
+
+		if (!(slide.hasPermission(user))) {
+			throw new ForbiddenResponse();
+		}
+
+		Map<String, Object> status = Application.getInstance().getTiler().getStatus(id);
+
+		if (status == null) {
+			throw new NotFoundResponse("Slide has not been queued for tiling.");
+		}
+
+		ctx.status(200).json(status);
+	}
+
 	/* Private API */
 
 	private List<HashMap<String, Object>> addPropertiesToSlides(Collection<Slide> slides) {
@@ -336,6 +393,6 @@ public class SlideController extends Controller implements CrudHandler {
 			Path.of(String.format(Constants.PENDING_SLIDES, id))
 		);
 
-		Application.getInstance().getTiler().addSlideToTilerQueue(pendingSlide);
+		Application.getInstance().getTiler().addSlideToTilerQueue(pendingSlide, Tiler.Priority.NORMAL, slide.getOwner().getId(), TilingOptions.defaults());
 	}
 }
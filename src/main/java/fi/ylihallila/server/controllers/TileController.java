@@ -0,0 +1,260 @@
+package fi.ylihallila.server.controllers;
+
+import fi.ylihallila.server.archivers.TileContainer;
+import fi.ylihallila.server.storage.ContainerSlideStorage;
+import fi.ylihallila.server.util.Constants;
+import io.javalin.http.Context;
+import io.javalin.http.NotFoundResponse;
+import io.javalin.plugin.openapi.annotations.OpenApi;
+import io.javalin.plugin.openapi.annotations.OpenApiParam;
+import io.javalin.plugin.openapi.annotations.OpenApiResponse;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves tiles from the containers of slides stored with {@link ContainerSlideStorage} or packed into containers,
+ * and the files of a slide which aren't in its container.
+ * <p>
+ * Open containers are checked for appended segments at most once every {@link #REVALIDATE_MILLIS}, so that most
+ * requests neither touch the file system nor wait for each other.
+ */
+public class TileController extends Controller {
+
+    private static final Logger logger = LoggerFactory.getLogger(TileController.class);
+
+    /**
+     * Number of containers kept open.
+     */
+    private static final int MAX_READERS = 256;
+
+    /**
+     * Interval at which the size of an open container is compared to the size it was opened at.
+     */
+    private static final long REVALIDATE_MILLIS = 1000;
+
+    private final Path tileDirectory = Path.of(Constants.TILE_DIRECTORY).toAbsolutePath().normalize();
+
+    private final Map<String, Container> containers = new ConcurrentHashMap<>();
+
+    @OpenApi(
+        summary = "Returns a tile, or another file of the slide such as its thumbnail",
+        tags = { "tiles" },
+        pathParams = @OpenApiParam(name = "id", description = "Slide id"),
+        responses = {
+            @OpenApiResponse(status = "200"),
+            @OpenApiResponse(status = "304", description = "Tile not modified"),
+            @OpenApiResponse(status = "404", description = "Slide or tile not found")
+        }
+    )
+    public void get(@NotNull Context ctx) throws IOException {
+        String id = ctx.pathParam("id");
+        String name = ctx.splat(0);
+
+        if (name == null || name.isBlank()) {
+            throw new NotFoundResponse();
+        }
+
+        Path directory = tileDirectory.resolve(id).normalize();
+        Path file = directory.resolve(name).normalize();
+
+        if (!directory.getParent().equals(tileDirectory) || !file.startsWith(directory) || file.equals(directory)) {
+            throw new NotFoundResponse();
+        }
+
+        if (serveTile(ctx, id, name)) {
+            return;
+        }
+
+        if (Files.isRegularFile(file)) {
+            ctx.contentType(getContentType(name)).result(Files.newInputStream(file));
+        } else {
+            throw new NotFoundResponse();
+        }
+    }
+
+    /**
+     * Serves a tile from the container of a slide. Tiles are never changed in place, so the location of a tile
+     * in its container identifies its content.
+     *
+     * @return false if the slide doesn't have a container or the tile isn't in it.
+     */
+    private boolean serveTile(Context ctx, String id, String name) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Container container = getContainer(id);
+
+            if (container == null || container.reader == null) {
+                return false;
+            }
+
+            try {
+                TileContainer.Tile tile = container.reader.find(name);
+
+                if (tile == null) {
+                    return false;
+                }
+
+                String etag = "\"" + Long.toHexString(container.created) + "-" + Long.toHexString(tile.getOffset()) + "\"";
+
+                if (etag.equals(ctx.header("If-None-Match"))) {
+                    ctx.status(304);
+                    return true;
+                }
+
+                byte[] data = container.reader.read(tile);
+
+                ctx.header("ETag", etag);
+                ctx.contentType(getContentType(name)).result(new ByteArrayInputStream(data));
+
+                return true;
+            } catch (ClosedChannelException e) {
+                // The container was reopened by another request, as tiles were appended to it
+                if (attempt > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the container of a slide. Containers are reopened when they have grown since they were opened, so
+     * that the tiles appended to them are found; this is checked only every {@link #REVALIDATE_MILLIS}.
+     *
+     * @return the container, whose reader is null if the slide doesn't have one.
+     */
+    private Container getContainer(String id) {
+        long now = System.currentTimeMillis();
+        Container container = containers.get(id);
+
+        if (container != null && now - container.checked < REVALIDATE_MILLIS) {
+            container.used = now;
+            return container;
+        }
+
+        container = containers.compute(id, (key, current) -> revalidate(key, current, now));
+
+        if (containers.size() > MAX_READERS) {
+            evict();
+        }
+
+        return container;
+    }
+
+    /**
+     * Reopens the container of a slide if it has grown. Called by one request at a time per slide.
+     */
+    private Container revalidate(String id, Container current, long now) {
+        // Already revalidated by the request this one waited for
+        if (current != null && now - current.checked < REVALIDATE_MILLIS) {
+            return current;
+        }
+
+        Path path = ContainerSlideStorage.getContainer(id);
+
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+            if (current != null && current.reader != null && attributes.size() == current.reader.getSize()) {
+                current.checked = now;
+                return current;
+            }
+
+            Container opened = new Container(TileContainer.Reader.open(path), attributes.creationTime().toMillis(), now);
+
+            if (current != null) {
+                current.close();
+            }
+
+            return opened;
+        } catch (NoSuchFileException e) {
+            if (current != null) {
+                current.close();
+            }
+
+            return new Container(null, 0, now);
+        } catch (IOException e) {
+            // A segment is being appended; the tiles of the earlier segments can still be read
+            logger.debug("Could not open the container of {}", id, e);
+
+            if (current != null) {
+                current.checked = now;
+                return current;
+            }
+
+            return new Container(null, 0, now);
+        }
+    }
+
+    /**
+     * Closes the container used least recently.
+     */
+    private void evict() {
+        containers.entrySet().stream()
+            .min(Comparator.comparingLong(entry -> entry.getValue().used))
+            .ifPresent(eldest -> {
+                if (containers.remove(eldest.getKey(), eldest.getValue())) {
+                    eldest.getValue().close();
+                }
+            });
+    }
+
+    private String getContentType(String name) {
+        String lowerCase = name.toLowerCase();
+
+        if (lowerCase.endsWith(".jpg") || lowerCase.endsWith(".jpeg")) {
+            return "image/jpeg";
+        } else if (lowerCase.endsWith(".png")) {
+            return "image/png";
+        } else if (lowerCase.endsWith(".dzi")) {
+            return "application/xml";
+        }
+
+        return "application/octet-stream";
+    }
+
+    /**
+     * An open container, or a slide without one.
+     */
+    private static class Container {
+
+        private final TileContainer.Reader reader;
+
+        /**
+         * Creation time of the container, which identifies it in ETags along with the locations of its tiles.
+         */
+        private final long created;
+
+        private volatile long checked;
+        private volatile long used;
+
+        private Container(TileContainer.Reader reader, long created, long now) {
+            this.reader = reader;
+            this.created = created;
+            this.checked = now;
+            this.used = now;
+        }
+
+        private void close() {
+            if (reader == null) {
+                return;
+            }
+
+            try {
+                reader.close();
+            } catch (IOException e) {
+                logger.error("Error while closing tile container", e);
+            }
+        }
+    }
+}
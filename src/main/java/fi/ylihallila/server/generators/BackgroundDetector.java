@@ -0,0 +1,145 @@
+package fi.ylihallila.server.generators;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Detects tiles which consist only of background, i.e. empty glass. A pixel is background when each of
+ * its color channels is within <code>tolerance</code> of the background color and a tile is background
+ * when at most <code>maxForeground</code> of its pixels are not.
+ * <p>
+ * The channels of a pixel are compared at once by spreading them into the 16-bit lanes of a long
+ * (SWAR). When sampling is enabled a sparse, staggered grid of pixels is checked first: tiles with
+ * clearly too much foreground are rejected and tiles without any foreground in the sample are accepted
+ * without scanning every pixel. Everything in between is scanned in full.
+ */
+public class BackgroundDetector {
+
+	/**
+	 * Guard bit of each 16-bit lane.
+	 */
+	private static final long GUARD = 0x0000_8000_8000_8000L;
+
+	/**
+	 * Distance between sampled pixels, both horizontally and vertically.
+	 */
+	private static final int SAMPLE_STEP = 16;
+
+	private final long lower;
+	private final long upper;
+
+	private final double maxForeground;
+	private final boolean sampling;
+
+	/**
+	 * @param background background color of the slide.
+	 * @param tolerance allowed relative difference per channel, e.g. 0.05 for 5%.
+	 * @param maxForeground fraction of pixels which may differ from the background, e.g. 0.01 for 1%.
+	 * @param sampling whether tiles can be classified from a sample of their pixels.
+	 */
+	public BackgroundDetector(Color background, double tolerance, double maxForeground, boolean sampling) {
+		this.lower = spread(scaleColor(background, 1 - tolerance));
+		this.upper = spread(scaleColor(background, 1 + tolerance));
+		this.maxForeground = maxForeground;
+		this.sampling = sampling;
+	}
+
+	/**
+	 * @param img a <code>TYPE_INT_RGB</code> or <code>TYPE_INT_ARGB</code> image.
+	 * @return true if the tile is to be considered background.
+	 */
+	public boolean isBackground(BufferedImage img) {
+		int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+		int scanline = ((SinglePixelPackedSampleModel) img.getSampleModel()).getScanlineStride();
+
+		return isBackground(pixels, scanline, img.getWidth(), img.getHeight());
+	}
+
+	/**
+	 * @param pixels packed RGB pixels; the alpha channel is ignored.
+	 * @param scanline distance between the first pixels of two consecutive rows.
+	 * @return true if the tile is to be considered background.
+	 */
+	public boolean isBackground(int[] pixels, int scanline, int width, int height) {
+		int maxPixelsDifferent = (int) Math.ceil(maxForeground * width * height);
+
+		if (sampling) {
+			int sampled = 0;
+			int foreground = 0;
+
+			for (int y = SAMPLE_STEP / 2, i = 0; y < height; y += SAMPLE_STEP, i++) {
+				int row = y * scanline;
+
+				// Stagger the columns of each row so that vertical features can't fall between samples
+				for (int x = (i * 7) % SAMPLE_STEP; x < width; x += SAMPLE_STEP) {
+					if (!isBackground(pixels[row + x])) {
+						foreground++;
+					}
+
+					sampled++;
+				}
+			}
+
+			if (sampled > 0) {
+				if (foreground > maxForeground * sampled) {
+					return false;
+				}
+
+				if (foreground == 0) {
+					return true;
+				}
+			}
+		}
+
+		int pixelsNotBackground = 0;
+
+		for (int y = 0; y < height; y++) {
+			int row = y * scanline;
+
+			for (int x = 0; x < width; x++) {
+				if (!isBackground(pixels[row + x])) {
+					pixelsNotBackground++;
+
+					if (pixelsNotBackground > maxPixelsDifferent) {
+						return false;
+					}
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Checks whether every channel of the pixel is within bounds. Each channel is placed in its own
+	 * 16-bit lane with the guard bit set, so subtracting the bound clears the guard bit only if the
+	 * channel is out of bounds.
+	 */
+	private boolean isBackground(int pixel) {
+		long channels = spread(pixel);
+
+		long aboveLower = ((channels | GUARD) - lower) & GUARD;
+		long belowUpper = ((upper | GUARD) - channels) & GUARD;
+
+		return (aboveLower & belowUpper) == GUARD;
+	}
+
+	/**
+	 * Spreads the red, green and blue channels of a pixel into separate 16-bit lanes.
+	 */
+	private static long spread(int pixel) {
+		return (pixel & 0xFFL) | ((pixel & 0xFF00L) << 8) | ((pixel & 0xFF0000L) << 16);
+	}
+
+	private static int scaleColor(Color color, double factor) {
+		return do8BitRangeCheck(color.getRed()   * factor) << 16
+		     | do8BitRangeCheck(color.getGreen() * factor) << 8
+		     | do8BitRangeCheck(color.getBlue()  * factor);
+	}
+
+	private static int do8BitRangeCheck(double v) {
+		return v < 0 ? 0 : (v > 255 ? 255 : (int) v);
+	}
+}
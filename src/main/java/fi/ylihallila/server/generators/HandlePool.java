@@ -0,0 +1,143 @@
+package fi.ylihallila.server.generators;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A pool of handles to a single resource, each of which serializes its use. Handles are opened as they are
+ * needed, up to the size of the pool; a thread borrowing a handle while all of them are in use waits for one
+ * to be released.
+ *
+ * @see OpenSlidePool
+ */
+public class HandlePool<T extends Closeable> implements Closeable {
+
+	/**
+	 * Opens another handle of the pool.
+	 */
+	public interface Opener<T> {
+		T open() throws IOException;
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(HandlePool.class);
+
+	private final String name;
+	private final Opener<T> opener;
+	private final int size;
+
+	/**
+	 * Handles which are not borrowed. Guarded by <code>this</code>, which is notified when a handle is released
+	 * or the pool is closed.
+	 */
+	private final Deque<T> idle = new ArrayDeque<>();
+
+	/**
+	 * Every handle opened by this pool. Guarded by <code>this</code>.
+	 */
+	private final List<T> handles = new ArrayList<>();
+
+	private boolean closed = false;
+
+	/**
+	 * @param name name of the resource, for logging.
+	 * @param handle handle which is already open; it becomes the first handle of the pool and is closed with it.
+	 * @param size maximum number of handles.
+	 */
+	public HandlePool(String name, Opener<T> opener, T handle, int size) {
+		this.name = name;
+		this.opener = opener;
+		this.size = Math.max(1, size);
+
+		handles.add(handle);
+		idle.add(handle);
+	}
+
+	/**
+	 * Borrows a handle, which must be returned with {@link #release(Closeable)}.
+	 *
+	 * @throws IllegalStateException if the pool is closed, including while waiting for a handle.
+	 */
+	public synchronized T borrow() throws InterruptedException {
+		boolean opening = true;
+
+		while (!closed) {
+			T handle = idle.poll();
+
+			if (handle != null) {
+				return handle;
+			}
+
+			if (opening && handles.size() < size) {
+				try {
+					handle = opener.open();
+					handles.add(handle);
+
+					return handle;
+				} catch (IOException e) {
+					// Continue with the handles which are already open
+					logger.warn("Error while opening another handle for {}", name, e);
+					opening = false;
+				}
+			}
+
+			wait();
+		}
+
+		throw new IllegalStateException("Handle pool of " + name + " is closed");
+	}
+
+	/**
+	 * Returns a borrowed handle to the pool, or closes it if the pool was closed while it was borrowed.
+	 */
+	public synchronized void release(T handle) {
+		if (closed) {
+			close(handle);
+			return;
+		}
+
+		idle.add(handle);
+		notify();
+	}
+
+	/**
+	 * @return number of handles opened so far.
+	 */
+	public synchronized int getOpenHandles() {
+		return handles.size();
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Closes every handle. Threads waiting for a handle, and later borrowers, get an {@link IllegalStateException}.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+
+		for (T handle : handles) {
+			close(handle);
+		}
+
+		handles.clear();
+		idle.clear();
+		notifyAll();
+	}
+
+	private void close(T handle) {
+		try {
+			handle.close();
+		} catch (IOException e) {
+			logger.warn("Error while closing a handle for {}", name, e);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package fi.ylihallila.server.generators;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Base class for encoders which use an ImageIO writer. Each encode thread reuses its own writer and
+ * output buffer, so that encoding a tile allocates little more than its encoded bytes.
+ */
+public abstract class ImageIOTileEncoder implements TileEncoder {
+
+	private final ThreadLocal<Writer> writers;
+
+	protected ImageIOTileEncoder(String format) {
+		this.writers = ThreadLocal.withInitial(() -> new Writer(format));
+	}
+
+	/**
+	 * Configures the write parameters of a new writer.
+	 */
+	protected abstract void configure(ImageWriteParam params);
+
+	/**
+	 * Returns the metadata to write a tile with, or null for the default metadata.
+	 */
+	protected IIOMetadata getMetadata(ImageWriter writer, ImageWriteParam params, BufferedImage img) throws IOException {
+		return null;
+	}
+
+	@Override
+	public byte[] encode(BufferedImage img) throws IOException {
+		Writer writer = writers.get();
+		writer.output.clear();
+
+		writer.writer.setOutput(writer.output);
+		writer.writer.write(null, new IIOImage(img, null, getMetadata(writer.writer, writer.params, img)), writer.params);
+
+		return writer.output.toByteArray();
+	}
+
+	private class Writer {
+
+		private final ImageWriter writer;
+		private final ImageWriteParam params;
+		private final TileOutputStream output = new TileOutputStream(256 * 1024);
+
+		private Writer(String format) {
+			this.writer = ImageIO.getImageWritersByFormatName(format).next();
+			this.params = writer.getDefaultWriteParam();
+
+			configure(params);
+		}
+	}
+}
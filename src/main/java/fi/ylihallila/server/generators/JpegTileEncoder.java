@@ -0,0 +1,37 @@
+package fi.ylihallila.server.generators;
+
+import javax.imageio.ImageWriteParam;
+
+/**
+ * Lossy JPEG compression with the default settings of ImageIO: standard Huffman tables and 4:2:0 chroma subsampling.
+ */
+public class JpegTileEncoder extends ImageIOTileEncoder {
+
+	public static final String NAME = "jpeg";
+
+	private final int quality;
+
+	/**
+	 * @param quality JPEG quality, 0-100.
+	 */
+	public JpegTileEncoder(int quality) {
+		super("jpg");
+		this.quality = quality;
+	}
+
+	@Override
+	protected void configure(ImageWriteParam params) {
+		params.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		params.setCompressionQuality(quality / 100.0f);
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public String getExtension() {
+		return "jpg";
+	}
+}
@@ -0,0 +1,21 @@
+package fi.ylihallila.server.generators;
+
+import org.openslide.OpenSlide;
+
+import java.io.File;
+
+/**
+ * A pool of OpenSlide handles of a single slide. Each handle serializes the regions read through it, so tiles
+ * are read in parallel by borrowing a handle per tile. Handles are opened as they are needed, up to the size
+ * of the pool; a thread borrowing a handle while all of them are in use waits for one to be released.
+ */
+public class OpenSlidePool extends HandlePool<OpenSlide> {
+
+	/**
+	 * @param openSlide handle which is already open; it becomes the first handle of the pool and is closed with it.
+	 * @param size maximum number of handles.
+	 */
+	public OpenSlidePool(File file, OpenSlide openSlide, int size) {
+		super(file.getPath(), () -> new OpenSlide(file), openSlide, size);
+	}
+}
@@ -0,0 +1,110 @@
+package fi.ylihallila.server.generators;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Lossy JPEG compression with Huffman tables optimized for each tile and configurable chroma subsampling.
+ * Optimized tables make tiles a few percent smaller for some extra CPU time; without subsampling (4:4:4)
+ * tiles are larger but keep fine color detail, such as thin stained structures.
+ */
+public class OptimizedJpegTileEncoder extends JpegTileEncoder {
+
+	public static final String NAME = "jpeg-optimized";
+
+	private static final String METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+	public enum ChromaSubsampling {
+
+		/**
+		 * Full resolution color.
+		 */
+		YUV444(1, 1),
+
+		/**
+		 * Color at half the horizontal resolution.
+		 */
+		YUV422(2, 1),
+
+		/**
+		 * Color at half the horizontal and vertical resolution; the ImageIO default.
+		 */
+		YUV420(2, 2);
+
+		/**
+		 * Sampling factors of the luma component; the chroma components are always sampled at 1.
+		 */
+		private final int horizontal;
+		private final int vertical;
+
+		ChromaSubsampling(int horizontal, int vertical) {
+			this.horizontal = horizontal;
+			this.vertical = vertical;
+		}
+
+		/**
+		 * @param value "4:4:4", "4:2:2" or "4:2:0".
+		 */
+		public static ChromaSubsampling of(String value) {
+			return switch (value) {
+				case "4:4:4" -> YUV444;
+				case "4:2:2" -> YUV422;
+				case "4:2:0" -> YUV420;
+				default -> throw new IllegalArgumentException("Unknown chroma subsampling: " + value);
+			};
+		}
+	}
+
+	private final ChromaSubsampling subsampling;
+
+	/**
+	 * @param quality JPEG quality, 0-100.
+	 */
+	public OptimizedJpegTileEncoder(int quality, ChromaSubsampling subsampling) {
+		super(quality);
+		this.subsampling = subsampling;
+	}
+
+	@Override
+	protected void configure(ImageWriteParam params) {
+		super.configure(params);
+
+		((JPEGImageWriteParam) params).setOptimizeHuffmanTables(true);
+	}
+
+	@Override
+	protected IIOMetadata getMetadata(ImageWriter writer, ImageWriteParam params, BufferedImage img) throws IOException {
+		if (subsampling == ChromaSubsampling.YUV420) {
+			return null;
+		}
+
+		IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(img), params);
+		Element tree = (Element) metadata.getAsTree(METADATA_FORMAT);
+		NodeList components = tree.getElementsByTagName("componentSpec");
+
+		for (int i = 0; i < components.getLength(); i++) {
+			Element component = (Element) components.item(i);
+
+			// The first component is luma
+			component.setAttribute("HsamplingFactor", String.valueOf(i == 0 ? subsampling.horizontal : 1));
+			component.setAttribute("VsamplingFactor", String.valueOf(i == 0 ? subsampling.vertical : 1));
+		}
+
+		metadata.setFromTree(METADATA_FORMAT, tree);
+
+		return metadata;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+}
@@ -0,0 +1,39 @@
+package fi.ylihallila.server.generators;
+
+import javax.imageio.ImageWriteParam;
+
+/**
+ * Lossless PNG compression, for slides where JPEG artifacts are not acceptable. Tiles are several times
+ * larger than JPEG tiles and slower to encode.
+ */
+public class PngTileEncoder extends ImageIOTileEncoder {
+
+	public static final String NAME = "png";
+
+	private final int compression;
+
+	/**
+	 * @param compression deflate level, 0-9; higher levels make smaller tiles but take longer.
+	 */
+	public PngTileEncoder(int compression) {
+		super("png");
+		this.compression = Math.max(0, Math.min(9, compression));
+	}
+
+	@Override
+	protected void configure(ImageWriteParam params) {
+		// The PNG writer maps the quality 1.0 to deflate level 0 and 0.0 to level 9
+		params.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		params.setCompressionQuality(1.0f - compression / 9.0f);
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public String getExtension() {
+		return "png";
+	}
+}
@@ -0,0 +1,334 @@
+package fi.ylihallila.server.generators;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds coarser pyramid levels by downscaling tiles which were already rendered for the level below,
+ * instead of reading every level from OpenSlide. Only the lowest level of a chain of built levels is
+ * read from OpenSlide; each rendered tile is box-filtered into the tile of the level above it and once
+ * every tile below a tile has been rendered, that tile is written and in turn downscaled to the next level.
+ * <p>
+ * A level can be built from the level below it when its downsample is an integer multiple (2, 4, ...)
+ * of the level below, see {@link #canBuild(int, int, int)}. Tiles are submitted depth-first so that
+ * only a handful of partially built tiles are kept in memory at any time.
+ * <p>
+ * When tiles overlap, a tile also covers the edges of the cells of its neighbours, so it is built from the
+ * tiles below its own cell and the tiles below the edges of its neighbours' cells; only the cell of each tile
+ * below, without its overlap, is used.
+ */
+public class PyramidBuilder {
+
+	/**
+	 * Creates the worker for the given tile. The worker is used to read tiles from OpenSlide
+	 * and to encode and archive both read and built tiles.
+	 */
+	public interface WorkerFactory {
+		TileWorker create(int level, int column, int row);
+	}
+
+	private final TilePipeline pipeline;
+	private final WorkerFactory workers;
+
+	private final TilingJob.Level[] levels;
+	private final PyramidLayout layout;
+	private final int[] downsamples;
+	private final boolean[] built;
+
+	private final int tileSize;
+
+	private final int background;
+
+	/**
+	 * Tiles outside of tissue are not read, or null to read every tile.
+	 */
+	private final TissueMask tissueMask;
+
+	/**
+	 * Partially built tiles.
+	 */
+	private final Map<Long, Node> pending = new ConcurrentHashMap<>();
+
+	/**
+	 * @param levels tiling levels, indexed by level.
+	 * @param layout layout of the levels.
+	 * @param built true for each level which is built from the level below it.
+	 * @param bgColor background color of the slide or null.
+	 * @param tissueMask mask of tissue on the slide or null to read every tile.
+	 */
+	public PyramidBuilder(TilePipeline pipeline, WorkerFactory workers, TilingJob.Level[] levels, PyramidLayout layout, boolean[] built,
+	                      Color bgColor, TissueMask tissueMask) {
+		this.pipeline = pipeline;
+		this.workers = workers;
+		this.levels = levels;
+		this.layout = layout;
+		this.downsamples = layout.getDownsamples();
+		this.built = built;
+		this.tileSize = layout.getTileSize();
+		this.background = bgColor == null ? 0 : bgColor.getRGB() & 0xFFFFFF;
+		this.tissueMask = tissueMask;
+	}
+
+	/**
+	 * Checks whether a level can be built by downscaling the tiles of the level below it.
+	 */
+	public static boolean canBuild(int downsample, int parentDownsample, int tileSize) {
+		if (downsample <= 0 || parentDownsample % downsample != 0) {
+			return false;
+		}
+
+		int factor = parentDownsample / downsample;
+
+		return factor >= 2 && tileSize % factor == 0;
+	}
+
+	/**
+	 * Submits the tiles of <code>base</code>, read from OpenSlide, and registers the tiles of levels
+	 * <code>base + 1</code> to <code>top</code>, which are built from them.
+	 */
+	public void submit(int base, int top) throws InterruptedException {
+		levels[base].setTotalTiles(columns(base) * rows(base));
+
+		for (int level = base + 1; level <= top; level++) {
+			levels[level].setTotalTiles(columns(level) * rows(level));
+			levels[level].expect(columns(level) * rows(level));
+		}
+
+		int factor = downsamples[top] / downsamples[base];
+		int columns = (columns(base) + factor - 1) / factor;
+		int rows    = (rows(base)    + factor - 1) / factor;
+
+		for (int column = 0; column < columns; column++) {
+			for (int row = 0; row < rows; row++) {
+				submit(top, column, row, base);
+			}
+		}
+	}
+
+	private void submit(int level, int column, int row, int base) throws InterruptedException {
+		if (level == base) {
+			if (column < columns(level) && row < rows(level)) {
+				TileWorker worker = workers.create(level, column, row);
+
+				if (tissueMask != null && !worker.containsTissue(tissueMask)) {
+					levels[level].tileSkipped();
+					tileRendered(level, column, row, null);
+					return;
+				}
+
+				pipeline.submit(levels[level], worker, img -> tileRendered(level, column, row, img));
+			}
+
+			return;
+		}
+
+		int factor = downsamples[level] / downsamples[level - 1];
+
+		for (int c = 0; c < factor; c++) {
+			for (int r = 0; r < factor; r++) {
+				submit(level - 1, column * factor + c, row * factor + r, base);
+			}
+		}
+	}
+
+	/**
+	 * Adds a rendered tile to the tiles above it.
+	 *
+	 * @param img rendered tile, or null if the tile was skipped, outside of tissue or could not be read.
+	 */
+	private void tileRendered(int level, int column, int row, BufferedImage img) {
+		int parentLevel = level + 1;
+
+		if (parentLevel >= built.length || !built[parentLevel]) {
+			return;
+		}
+
+		int factor = downsamples[parentLevel] / downsamples[level];
+
+		// Cell of this tile
+		int cellX0 = column * tileSize;
+		int cellY0 = row * tileSize;
+		int cellX1 = Math.min(cellX0 + tileSize, layout.getWidth(level));
+		int cellY1 = Math.min(cellY0 + tileSize, layout.getHeight(level));
+
+		// Without overlap only the tile above the cell covers it, with overlap also its neighbours may
+		for (int parentColumn = column / factor - 1; parentColumn <= column / factor + 1; parentColumn++) {
+			for (int parentRow = row / factor - 1; parentRow <= row / factor + 1; parentRow++) {
+				if (parentColumn < 0 || parentRow < 0 || parentColumn >= columns(parentLevel) || parentRow >= rows(parentLevel)) {
+					continue;
+				}
+
+				// Part of the cell covered by the tile above, in the pixels of this level
+				int x0 = Math.max(cellX0, layout.getTileX(parentColumn) * factor);
+				int y0 = Math.max(cellY0, layout.getTileY(parentRow) * factor);
+				int x1 = Math.min(cellX1, (layout.getTileX(parentColumn) + layout.getTileWidth(parentLevel, parentColumn)) * factor);
+				int y1 = Math.min(cellY1, (layout.getTileY(parentRow) + layout.getTileHeight(parentLevel, parentRow)) * factor);
+
+				if (x0 >= x1 || y0 >= y1) {
+					continue;
+				}
+
+				int pc = parentColumn, pr = parentRow;
+				long key = key(parentLevel, parentColumn, parentRow);
+				Node node = pending.computeIfAbsent(key, k -> createNode(parentLevel, pc, pr, factor));
+
+				if (img != null) {
+					downscale(img, layout.getTileX(column), layout.getTileY(row), node, x0, y0, x1, y1, factor);
+					node.empty = false;
+				}
+
+				if (node.remaining.decrementAndGet() == 0) {
+					pending.remove(key);
+					finish(parentLevel, parentColumn, parentRow, node);
+				}
+			}
+		}
+	}
+
+	private void finish(int level, int column, int row, Node node) {
+		boolean written = false;
+
+		try {
+			BufferedImage img = null;
+
+			if (!levels[level].isCancelled() && !node.empty) {
+				img = node.image;
+				pipeline.write(levels[level], workers.create(level, column, row), img);
+				written = true;
+			}
+
+			tileRendered(level, column, row, img);
+		} finally {
+			// Written tiles are marked as done by the pipeline
+			if (!written) {
+				levels[level].tileDone();
+			}
+		}
+	}
+
+	private Node createNode(int level, int column, int row, int factor) {
+		int width  = layout.getTileWidth(level, column);
+		int height = layout.getTileHeight(level, row);
+
+		// Tiles of the level below whose cells the tile covers
+		int children = count(layout.getTileX(column) * factor, (layout.getTileX(column) + width)  * factor, layout.getWidth(level - 1))
+		             * count(layout.getTileY(row) * factor, (layout.getTileY(row) + height) * factor, layout.getHeight(level - 1));
+
+		return new Node(layout.getTileX(column), layout.getTileY(row), width, height, children);
+	}
+
+	/**
+	 * @return number of cells of a level which overlap the range from <code>start</code> to <code>end</code>.
+	 */
+	private int count(int start, int end, int levelSize) {
+		end = Math.min(end, levelSize);
+
+		return (end + tileSize - 1) / tileSize - start / tileSize;
+	}
+
+	/**
+	 * Box-filters the area from <code>(x0, y0)</code> to <code>(x1, y1)</code> of <code>img</code> by <code>factor</code>
+	 * into <code>node</code>. Coordinates are in the pixels of the level of <code>img</code>; the area lies within the cell
+	 * of the tile and starts at a multiple of <code>factor</code>, so each pixel of the node is filled from a single tile.
+	 * This can be called concurrently for the same node.
+	 *
+	 * @param imgX x coordinate of <code>img</code>.
+	 * @param imgY y coordinate of <code>img</code>.
+	 */
+	private void downscale(BufferedImage img, int imgX, int imgY, Node node, int x0, int y0, int x1, int y1, int factor) {
+		int[] src = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+		int srcWidth = img.getWidth();
+
+		int width  = Math.min((x1 - x0 + factor - 1) / factor, node.x + node.width  - x0 / factor);
+		int height = Math.min((y1 - y0 + factor - 1) / factor, node.y + node.height - y0 / factor);
+
+		for (int y = 0; y < height; y++) {
+			int yStart = y0 + y * factor;
+			int yEnd = Math.min(y1, yStart + factor);
+
+			for (int x = 0; x < width; x++) {
+				int xStart = x0 + x * factor;
+				int xEnd = Math.min(x1, xStart + factor);
+
+				int r = 0, g = 0, b = 0;
+
+				for (int sy = yStart; sy < yEnd; sy++) {
+					int i = (sy - imgY) * srcWidth + xStart - imgX;
+
+					for (int sx = xStart; sx < xEnd; sx++, i++) {
+						int pixel = src[i];
+
+						r += (pixel >> 16) & 0xFF;
+						g += (pixel >> 8)  & 0xFF;
+						b +=  pixel        & 0xFF;
+					}
+				}
+
+				int n = (yEnd - yStart) * (xEnd - xStart);
+
+				node.pixels[(y0 / factor + y - node.y) * node.width + x0 / factor + x - node.x] =
+					((r + n / 2) / n) << 16 | ((g + n / 2) / n) << 8 | ((b + n / 2) / n);
+			}
+		}
+	}
+
+	/**
+	 * @return number of tiles horizontally on the given level.
+	 */
+	private int columns(int level) {
+		return layout.getColumns(level);
+	}
+
+	/**
+	 * @return number of tiles vertically on the given level.
+	 */
+	private int rows(int level) {
+		return layout.getRows(level);
+	}
+
+	private static long key(int level, int column, int row) {
+		return ((long) level << 56) | ((long) column << 28) | row;
+	}
+
+	private class Node {
+
+		/**
+		 * Position of the tile on its level.
+		 */
+		private final int x;
+		private final int y;
+
+		private final int width;
+		private final int height;
+
+		private final BufferedImage image;
+		private final int[] pixels;
+
+		/**
+		 * Number of tiles below this one which haven't been added yet.
+		 */
+		private final AtomicInteger remaining;
+
+		/**
+		 * True until a tile below this one has been added; empty tiles are not written.
+		 */
+		private volatile boolean empty = true;
+
+		private Node(int x, int y, int width, int height, int children) {
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+			this.remaining = new AtomicInteger(children);
+
+			Arrays.fill(pixels, background);
+		}
+	}
+}
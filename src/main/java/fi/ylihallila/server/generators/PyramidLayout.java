@@ -0,0 +1,276 @@
+package fi.ylihallila.server.generators;
+
+/**
+ * Describes the levels of the tiled pyramid of a slide and how each level is divided into tiles.
+ * Levels are indexed from the full resolution level 0 up to the coarsest level. Positions and sizes
+ * are in the pixels of the level unless noted otherwise; the tiled region of the slide starts at a
+ * level 0 offset.
+ * <p>
+ * Two layouts are supported:
+ * <ul>
+ *     <li><b>openslide</b> -- the levels of the slide as reported by OpenSlide, tiles never overlap.</li>
+ *     <li><b>deepzoom</b> -- DeepZoom (DZI) levels, each half the size of the level below it down to a single
+ *     pixel. Tiles overlap their neighbours by <code>overlap</code> pixels on each side which has a neighbour.</li>
+ * </ul>
+ * Tiles are laid out on a grid of <code>tileSize</code>; with overlap, a tile covers its grid cell plus the
+ * overlap, so tiles inside the level are <code>tileSize + 2 * overlap</code> pixels wide.
+ */
+public class PyramidLayout {
+
+	public enum Type {
+		OPENSLIDE("openslide"),
+		DEEPZOOM("deepzoom");
+
+		private final String name;
+
+		Type(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the layout with the given name or null if there is none.
+		 */
+		public static Type of(String name) {
+			for (Type type : values()) {
+				if (type.name.equalsIgnoreCase(name)) {
+					return type;
+				}
+			}
+
+			return null;
+		}
+	}
+
+	private final Type type;
+	private final int tileSize;
+	private final int overlap;
+
+	private final int offsetX;
+	private final int offsetY;
+
+	private final int[] downsamples;
+	private final int[] widths;
+	private final int[] heights;
+
+	private PyramidLayout(Type type, int tileSize, int overlap, int offsetX, int offsetY, int[] downsamples, int[] widths, int[] heights) {
+		this.type = type;
+		this.tileSize = tileSize;
+		this.overlap = overlap;
+		this.offsetX = offsetX;
+		this.offsetY = offsetY;
+		this.downsamples = downsamples;
+		this.widths = widths;
+		this.heights = heights;
+	}
+
+	/**
+	 * Creates a layout with the levels of the slide. The levels keep the sizes reported by OpenSlide, which
+	 * rounds them rather than dividing the size of level 0 by the downsample; a region smaller than the slide
+	 * is clipped to them.
+	 *
+	 * @param downsamples downsample of each level of the slide.
+	 * @param levelWidths width of each level of the slide, <code>openslide.level[n].width</code>.
+	 * @param levelHeights height of each level of the slide, <code>openslide.level[n].height</code>.
+	 * @param offsetX level 0 coordinate of the tiled region.
+	 * @param offsetY level 0 coordinate of the tiled region.
+	 * @param width level 0 width of the tiled region.
+	 * @param height level 0 height of the tiled region.
+	 */
+	public static PyramidLayout openSlide(int tileSize, int[] downsamples, int[] levelWidths, int[] levelHeights, int offsetX, int offsetY, int width, int height) {
+		int[] widths  = new int[downsamples.length];
+		int[] heights = new int[downsamples.length];
+
+		for (int level = 0; level < downsamples.length; level++) {
+			int downsample = downsamples[level];
+
+			widths[level]  = Math.max(0, Math.min(levelWidths[level]  - offsetX / downsample, ceilDiv(width,  downsample)));
+			heights[level] = Math.max(0, Math.min(levelHeights[level] - offsetY / downsample, ceilDiv(height, downsample)));
+		}
+
+		return new PyramidLayout(Type.OPENSLIDE, tileSize, 0, offsetX, offsetY, downsamples, widths, heights);
+	}
+
+	private static int ceilDiv(int value, int divisor) {
+		return (int) ((value + (long) divisor - 1) / divisor);
+	}
+
+	/**
+	 * Creates a DeepZoom layout, in which level <code>n</code> has a downsample of <code>2^n</code>.
+	 *
+	 * @see #openSlide(int, int[], int[], int[], int, int, int, int)
+	 */
+	public static PyramidLayout deepZoom(int tileSize, int overlap, int offsetX, int offsetY, int width, int height) {
+		int levels = 1;
+
+		while ((1L << (levels - 1)) < Math.max(width, height)) {
+			levels++;
+		}
+
+		int[] downsamples = new int[levels];
+		int[] widths      = new int[levels];
+		int[] heights     = new int[levels];
+
+		for (int level = 0; level < levels; level++) {
+			downsamples[level] = 1 << level;
+
+			// DeepZoom rounds partial pixels up
+			widths[level]  = (int) ((width  + (1L << level) - 1) >> level);
+			heights[level] = (int) ((height + (1L << level) - 1) >> level);
+		}
+
+		return new PyramidLayout(Type.DEEPZOOM, tileSize, overlap, offsetX, offsetY, downsamples, widths, heights);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return size of the tile grid.
+	 */
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	public int getOverlap() {
+		return overlap;
+	}
+
+	/**
+	 * @return width and height of the largest tile.
+	 */
+	public int getMaxTileSize() {
+		return tileSize + 2 * overlap;
+	}
+
+	public int getLevelCount() {
+		return downsamples.length;
+	}
+
+	public int[] getDownsamples() {
+		return downsamples.clone();
+	}
+
+	public int getDownsample(int level) {
+		return downsamples[level];
+	}
+
+	public int getWidth(int level) {
+		return widths[level];
+	}
+
+	public int getHeight(int level) {
+		return heights[level];
+	}
+
+	/**
+	 * @return level 0 width of the tiled region.
+	 */
+	public int getRegionWidth() {
+		return widths[0];
+	}
+
+	/**
+	 * @return level 0 height of the tiled region.
+	 */
+	public int getRegionHeight() {
+		return heights[0];
+	}
+
+	public int getOffsetX() {
+		return offsetX;
+	}
+
+	public int getOffsetY() {
+		return offsetY;
+	}
+
+	/**
+	 * @return level number used in tile names; DeepZoom numbers levels from the coarsest level up.
+	 */
+	public int getLevelName(int level) {
+		return type == Type.DEEPZOOM ? downsamples.length - 1 - level : level;
+	}
+
+	/**
+	 * @return number of tiles horizontally on the given level.
+	 */
+	public int getColumns(int level) {
+		return (widths[level] + tileSize - 1) / tileSize;
+	}
+
+	/**
+	 * @return number of tiles vertically on the given level.
+	 */
+	public int getRows(int level) {
+		return (heights[level] + tileSize - 1) / tileSize;
+	}
+
+	/**
+	 * @return x coordinate of the tile in the given column, including overlap.
+	 */
+	public int getTileX(int column) {
+		return start(column);
+	}
+
+	/**
+	 * @return y coordinate of the tile in the given row, including overlap.
+	 */
+	public int getTileY(int row) {
+		return start(row);
+	}
+
+	/**
+	 * @return width of the tile in the given column, including overlap; 0 if the column is outside the level.
+	 */
+	public int getTileWidth(int level, int column) {
+		return size(column, widths[level]);
+	}
+
+	/**
+	 * @return height of the tile in the given row, including overlap; 0 if the row is outside the level.
+	 */
+	public int getTileHeight(int level, int row) {
+		return size(row, heights[level]);
+	}
+
+	/**
+	 * @return offset of the grid cell within the tile in the given column or row; the width of the overlap
+	 *         unless the tile is the first one.
+	 */
+	public int getCellOffset(int index) {
+		return index > 0 ? overlap : 0;
+	}
+
+	/**
+	 * @return level 0 x coordinate of the given x coordinate of a level.
+	 */
+	public int toLevel0X(int level, int x) {
+		return offsetX + x * downsamples[level];
+	}
+
+	/**
+	 * @return level 0 y coordinate of the given y coordinate of a level.
+	 */
+	public int toLevel0Y(int level, int y) {
+		return offsetY + y * downsamples[level];
+	}
+
+	private int start(int index) {
+		return Math.max(0, index * tileSize - overlap);
+	}
+
+	private int size(int index, int levelSize) {
+		int start = index * tileSize;
+
+		if (start >= levelSize) {
+			return 0;
+		}
+
+		return Math.min(levelSize, start + tileSize + overlap) - start(index);
+	}
+}
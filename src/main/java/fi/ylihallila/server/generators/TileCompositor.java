@@ -0,0 +1,51 @@
+package fi.ylihallila.server.generators;
+
+/**
+ * Flattens premultiplied ARGB pixels, as read from OpenSlide, onto an opaque background color. This
+ * produces the same pixels as drawing the tile with Java2D over a tile filled with the background color,
+ * without going through the Java2D pipeline for every tile.
+ */
+public class TileCompositor {
+
+	/**
+	 * Flattens <code>length</code> pixels of <code>argb</code> into <code>rgb</code>.
+	 *
+	 * @param argb premultiplied ARGB pixels.
+	 * @param rgb buffer for the RGB pixels; the unused alpha byte is always zero.
+	 * @param background RGB background color; the alpha byte is ignored.
+	 */
+	public static void flatten(int[] argb, int[] rgb, int length, int background) {
+		int bgR = (background >> 16) & 0xFF;
+		int bgG = (background >> 8)  & 0xFF;
+		int bgB =  background        & 0xFF;
+
+		background &= 0xFFFFFF;
+
+		for (int i = 0; i < length; i++) {
+			int pixel = argb[i];
+			int alpha = pixel >>> 24;
+
+			if (alpha == 0xFF) {
+				rgb[i] = pixel & 0xFFFFFF;
+			} else if (alpha == 0) {
+				rgb[i] = background;
+			} else {
+				int inverse = 0xFF - alpha;
+
+				int r = ((pixel >> 16) & 0xFF) + mul8(inverse, bgR);
+				int g = ((pixel >> 8)  & 0xFF) + mul8(inverse, bgG);
+				int b =  (pixel        & 0xFF) + mul8(inverse, bgB);
+
+				rgb[i] = r << 16 | g << 8 | b;
+			}
+		}
+	}
+
+	/**
+	 * Multiplies two 8-bit values as fractions of 255, rounding exactly like the blending loops of Java2D.
+	 * The intermediate result fits in 32 bits when treated as unsigned.
+	 */
+	private static int mul8(int a, int b) {
+		return (a * b * 0x10101 + 0x800000) >>> 24;
+	}
+}
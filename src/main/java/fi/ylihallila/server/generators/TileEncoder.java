@@ -0,0 +1,65 @@
+package fi.ylihallila.server.generators;
+
+import fi.ylihallila.server.util.Config;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Compresses tiles before they are archived. Encoders trade the CPU time spent tiling against the size of
+ * the tiles, and thus the storage and bandwidth they use. The encoder is chosen with <code>tiler.encoder.format</code>,
+ * which can be overridden per storage provider and per slide; see {@link #create(String)}.
+ * <p>
+ * Encoders are shared by all encode threads and must be thread-safe.
+ */
+public interface TileEncoder {
+
+	/**
+	 * Names of the available encoders.
+	 */
+	List<String> NAMES = List.of(JpegTileEncoder.NAME, OptimizedJpegTileEncoder.NAME, PngTileEncoder.NAME);
+
+	/**
+	 * Compresses a tile.
+	 *
+	 * @return the compressed tile.
+	 */
+	byte[] encode(BufferedImage img) throws IOException;
+
+	/**
+	 * @return name of this encoder, one of {@link #NAMES}.
+	 */
+	String getName();
+
+	/**
+	 * @return file extension of the compressed tiles, without a dot.
+	 */
+	String getExtension();
+
+	/**
+	 * @return true if the given name is the name of an encoder.
+	 */
+	static boolean isSupported(String name) {
+		return name != null && NAMES.contains(name.toLowerCase());
+	}
+
+	/**
+	 * Creates an encoder configured by <code>tiler.compression</code> and <code>tiler.encoder</code>.
+	 *
+	 * @param name one of {@link #NAMES}.
+	 * @throws IllegalArgumentException if there is no encoder with the given name.
+	 */
+	static TileEncoder create(String name) {
+		int quality = Math.max(25, Math.min(100, Config.Config.getInt("tiler.compression")));
+
+		return switch (name.toLowerCase()) {
+			case JpegTileEncoder.NAME -> new JpegTileEncoder(quality);
+			case OptimizedJpegTileEncoder.NAME -> new OptimizedJpegTileEncoder(
+				quality, OptimizedJpegTileEncoder.ChromaSubsampling.of(Config.Config.getString("tiler.encoder.chroma-subsampling"))
+			);
+			case PngTileEncoder.NAME -> new PngTileEncoder(Config.Config.getInt("tiler.encoder.png-compression"));
+			default -> throw new IllegalArgumentException("Unknown tile encoder: " + name);
+		};
+	}
+}
@@ -1,18 +1,16 @@
 package fi.ylihallila.server.generators;
 
-import com.google.common.primitives.Ints;
 import com.google.gson.GsonBuilder;
+import fi.ylihallila.server.archivers.DeduplicatingTileArchive;
 import fi.ylihallila.server.archivers.TarTileArchive;
 import fi.ylihallila.server.archivers.TileArchive;
-import fi.ylihallila.server.models.Slide;
 import fi.ylihallila.server.storage.Allas;
+import fi.ylihallila.server.storage.ContainerSlideStorage;
 import fi.ylihallila.server.storage.LocalSlideStorage;
 import fi.ylihallila.server.storage.StorageProvider;
 import fi.ylihallila.server.util.Config;
 import fi.ylihallila.server.util.Constants;
-import fi.ylihallila.server.util.Database;
 import org.apache.commons.compress.utils.FileNameUtils;
-import org.hibernate.Session;
 import org.openslide.OpenSlide;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,34 +19,93 @@ import javax.imageio.ImageIO;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.time.Duration;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.*;
 
 public class TileGenerator implements Runnable {
 
 	private final Logger logger = LoggerFactory.getLogger(getClass());
-	private final ForkJoinPool executor = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+	/**
+	 * Property with the finest level of the slide whose tiles are available; every level above it is
+	 * available too, and levels below it are still being tiled. 0 once the slide has been tiled.
+	 */
+	public static final String AVAILABLE_LEVEL_PROPERTY = "tiles.available-level";
+
+	/**
+	 * Notified as levels of the slide are committed to storage.
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * @param level the level which was committed.
+		 * @param availableLevel the finest level which is available, see {@link #AVAILABLE_LEVEL_PROPERTY}.
+		 */
+		void levelCommitted(int level, int availableLevel);
+	}
 
 	private OpenSlide openSlide;
+
+	/**
+	 * Handles used to read tiles in parallel; includes <code>openSlide</code>.
+	 */
+	private OpenSlidePool openSlides;
 	private final File slideFile;
+	private final TilePipeline pipeline;
+	private final ProgressListener listener;
 
 	/**
-	 * How long should the tile generation process take for one slide.
-	 * After the specified duration any remaining tiles are ignored.
+	 * Options requested for this slide; options which are not set use the server configuration.
 	 */
-	private final long TIMEOUT = Duration.ofMinutes(30).toMillis();
+	private final TilingOptions options;
+
+	private volatile TileEncoder encoder;
+	private PyramidLayout layout;
+
+	/**
+	 * Deduplication statistics of the slide or null if tiles are not deduplicated.
+	 */
+	private volatile DeduplicatingTileArchive.Statistics deduplication;
+
+	/**
+	 * True once the slide has been tiled and committed successfully.
+	 */
+	private volatile boolean completed = false;
+
+	private volatile TilingJob job;
+
+	/**
+	 * Why tiling failed or null if it hasn't failed.
+	 */
+	private volatile String error;
+
+	/**
+	 * Finest level which is available, or the number of levels if none is.
+	 */
+	private volatile int availableLevel;
 
 	static {
 		ImageIO.setUseCache(false);
 	}
 
-	public TileGenerator(File slideFile) {
+	/**
+	 * @param pipeline pipeline which processes the tiles; shared with other slides being tiled at the same time.
+	 * @param options options for tiling this slide.
+	 * @param listener notified as levels are committed; may be null.
+	 */
+	public TileGenerator(File slideFile, TilePipeline pipeline, TilingOptions options, ProgressListener listener) {
 		this.slideFile = slideFile;
+		this.pipeline = pipeline;
+		this.options = options;
+		this.listener = listener;
 	}
 
 	@Override
@@ -62,6 +119,13 @@ public class TileGenerator implements Runnable {
 			Tile();
 		} catch (IOException | InterruptedException e) {
 			logger.error("Error while generating tiles for {}", slideFile.getName(), e);
+			this.error = getMessage(e);
+		} finally {
+			if (openSlides != null) {
+				openSlides.close();
+			} else if (openSlide != null) {
+				openSlide.close();
+			}
 		}
 	}
 
@@ -69,33 +133,40 @@ public class TileGenerator implements Runnable {
 		long startTime = System.currentTimeMillis();
 
 		this.openSlide = new OpenSlide(slideFile);
-		int compression = Ints.constrainToRange(Config.Config.getInt("tiler.compression"), 25, 100);
 		String id = getOrGenerateUUID(FileNameUtils.getBaseName(slideFile.getName()));
 		Color backgroundColor = getBackgroundColor();
 
 		int slideHeight = readIntegerProperty("openslide.level[0].height");
 		int slideWidth  = readIntegerProperty("openslide.level[0].width");
-		int levels      = readIntegerProperty("openslide.level-count");
+		int slideLevels = readIntegerProperty("openslide.level-count");
 
-		// Force tiles to be 1024x1024
-		int tileHeight = 1024; //readIntegerPropertyOrDefault("openslide.level[0].tile-height", 256);
-		int tileWidth  = 1024; //readIntegerPropertyOrDefault("openslide.level[0].tile-width",  256);
+		int boundsX = 0;
+		int boundsY = 0;
 
-		// Ignore bounds; currently not supported
-		int boundsX = 0; //readIntegerPropertyOrDefault(OpenSlide.PROPERTY_NAME_BOUNDS_X, 0);
-		int boundsY = 0; //readIntegerPropertyOrDefault(OpenSlide.PROPERTY_NAME_BOUNDS_Y, 0);
+		int boundsHeight = slideHeight;
+		int boundsWidth  = slideWidth;
 
-		int boundsHeight = 0; //readIntegerPropertyOrDefault(OpenSlide.PROPERTY_NAME_BOUNDS_WIDTH, slideHeight);
-		int boundsWidth  = 0; //readIntegerPropertyOrDefault(OpenSlide.PROPERTY_NAME_BOUNDS_HEIGHT, slideWidth);
+		// Only the region which was actually scanned is tiled; tiles keep their level 0 coordinates
+		if (Config.Config.getBoolean("tiler.bounds")) {
+			int x = Math.max(0, readIntegerPropertyOrDefault(OpenSlide.PROPERTY_NAME_BOUNDS_X, 0));
+			int y = Math.max(0, readIntegerPropertyOrDefault(OpenSlide.PROPERTY_NAME_BOUNDS_Y, 0));
 
-		// These multipliers are used to calculate the levelHeight and levelWidth
-		// as only the level 0 boundHeight and boundWidth is known.
-		double boundsYMultiplier = 1;
-		double boundsXMultiplier = 1;
+			int width  = Math.min(slideWidth  - x, readIntegerPropertyOrDefault(OpenSlide.PROPERTY_NAME_BOUNDS_WIDTH,  slideWidth));
+			int height = Math.min(slideHeight - y, readIntegerPropertyOrDefault(OpenSlide.PROPERTY_NAME_BOUNDS_HEIGHT, slideHeight));
 
-		if (boundsHeight > 0 && boundsWidth > 0) {
-			boundsYMultiplier = 1.0 * boundsHeight / slideHeight;
-			boundsXMultiplier = 1.0 * boundsWidth  / slideWidth;
+			if (width > 0 && height > 0) {
+				boundsX = x;
+				boundsY = y;
+				boundsWidth = width;
+				boundsHeight = height;
+			} else {
+				logger.warn("Ignoring invalid bounds of {}: {}x{} at {}/{}", id, width, height, x, y);
+			}
+		}
+
+		if (boundsWidth != slideWidth || boundsHeight != slideHeight) {
+			logger.debug("Tiling the bounds of {}: {}x{} at {}/{}, {}% of the slide", id, boundsWidth, boundsHeight, boundsX, boundsY,
+				Math.round(100.0 * boundsWidth * boundsHeight / ((double) slideWidth * slideHeight)));
 		}
 
 		var provider = Config.Config.getString("storage.provider").toLowerCase();
@@ -105,103 +176,375 @@ public class TileGenerator implements Runnable {
 					.setContainer(id)
 					.build();
 			case "local" -> new LocalSlideStorage();
+			case "container" -> new ContainerSlideStorage();
 			default -> {
 				logger.warn("Unknown slide storage provider '{}'; defaulting to local slide storage.", provider);
 				yield new LocalSlideStorage();
 			}
 		};
 
-		logger.info("Starting to tile {}; using {} as storage provider", id, storage.getName());
-
-		for (int level = levels - 1; level >= 0; level--) {
-			int levelHeight = (int) (readIntegerProperty("openslide.level[" + level + "].height") * boundsYMultiplier);
-			int levelWidth  = (int) (readIntegerProperty("openslide.level[" + level + "].width")  * boundsXMultiplier);
-
-			int cols = (int) Math.ceil(1.0 * levelHeight / tileHeight);
-			int rows = (int) Math.ceil(1.0 * levelWidth  / tileWidth);
-
-			int downsample = (int) readDoubleProperty("openslide.level[" + level + "].downsample");
-
-			// TODO: Let StorageProvider choose which TileArchive to use
-			TileArchive tileArchive = new TarTileArchive(id, level);
-
-			for (int row = 0; row <= rows; row++) {
-				for (int col = 0; col <= cols; col++) {
-					executor.execute(new TileWorker(
-						compression,
-						downsample, level, row, col,
-						boundsX, boundsY,
-						tileWidth, tileHeight,
-						slideWidth, slideHeight,
-						id,
-						backgroundColor,
-						openSlide,
-						tileArchive,
-						storage
-					));
-				}
+		TilingOptions settings = options.withDefaults(provider);
+		String invalid = settings.validate(Math.min(pipeline.getTileWidth(), pipeline.getTileHeight()));
+
+		if (invalid != null) {
+			logger.error("Cannot tile {} with {}: {}", id, settings, invalid);
+			this.error = invalid;
+			return;
+		}
+
+		int[] slideDownsamples = new int[slideLevels];
+		int[] slideLevelWidths = new int[slideLevels];
+		int[] slideLevelHeights = new int[slideLevels];
+
+		for (int level = 0; level < slideLevels; level++) {
+			// Downsamples such as 3.9998 are rounded, not truncated
+			slideDownsamples[level] = (int) Math.round(readDoubleProperty("openslide.level[" + level + "].downsample"));
+			slideLevelWidths[level] = readIntegerProperty("openslide.level[" + level + "].width");
+			slideLevelHeights[level] = readIntegerProperty("openslide.level[" + level + "].height");
+		}
+
+		this.encoder = TileEncoder.create(settings.getEncoder());
+		this.layout = PyramidLayout.Type.of(settings.getLayout()) == PyramidLayout.Type.DEEPZOOM
+			? PyramidLayout.deepZoom(settings.getTileSize(), settings.getOverlap(), boundsX, boundsY, boundsWidth, boundsHeight)
+			: PyramidLayout.openSlide(settings.getTileSize(), slideDownsamples, slideLevelWidths, slideLevelHeights, boundsX, boundsY, boundsWidth, boundsHeight);
+
+		int levels = layout.getLevelCount();
+
+		logger.info("Starting to tile {}; using {} as storage provider, {} as encoder and the {} layout with {} px tiles",
+			id, storage.getName(), encoder.getName(), layout.getType().getName(), layout.getTileSize());
+
+		this.availableLevel = levels;
+		// Cancelled, leaving the slide pending, if no tile finishes and no level is committed for this long
+		this.job = new TilingJob(id, Config.Config.getDuration("tiler.timeout"));
+
+		TileArchive[]     archives     = new TileArchive[levels];
+		TilingJob.Level[] tilingLevels = new TilingJob.Level[levels];
+		int[]             sources      = new int[levels];
+		boolean[]         built        = new boolean[levels];
+
+		// In the downsample mode levels are built from the tiles of the level below whenever possible
+		boolean buildPyramid = Config.Config.getString("tiler.pyramid").equalsIgnoreCase("downsample");
+
+		for (int level = 0; level < levels; level++) {
+			sources[level] = layout.getType() == PyramidLayout.Type.OPENSLIDE
+				? level
+				: findSourceLevel(slideDownsamples, layout.getDownsample(level));
+
+			// Levels which the slide doesn't have, such as most DeepZoom levels, are always built
+			built[level] = (buildPyramid || sources[level] < 0) && level > 0
+				&& PyramidBuilder.canBuild(layout.getDownsample(level - 1), layout.getDownsample(level), layout.getTileSize());
+		}
+
+		String tileNamingFormat = layout.getType() == PyramidLayout.Type.DEEPZOOM
+			? storage.getDeepZoomTileNamingFormat()
+			: storage.getTileNamingFormat();
+
+		TileNameTemplate tileNames = new TileNameTemplate(withExtension(tileNamingFormat));
+
+		if (Config.Config.getBoolean("tiler.deduplication")) {
+			if (storage.getContentNamingFormat() != null) {
+				this.deduplication = new DeduplicatingTileArchive.Statistics();
+			} else {
+				logger.warn("{} doesn't support tile deduplication; storing every tile of {}", storage.getName(), id);
+			}
+		}
+		BackgroundDetector backgroundDetector = createBackgroundDetector(backgroundColor);
+		TissueMask tissueMask = createTissueMask();
+
+		// One handle per read thread, so that reads don't wait for each other inside OpenSlide
+		int handles = Config.Config.getInt("tiler.openslide.handles");
+		this.openSlides = new OpenSlidePool(slideFile, openSlide, handles > 0 ? handles : pipeline.getReadThreads());
+
+		// Progress of a previous, interrupted attempt to tile this slide
+		TilingCheckpoint checkpoint = TilingCheckpoint.open(
+			new File(String.format(Constants.TILING_CHECKPOINT, id)), layout
+		);
+
+		PyramidBuilder.WorkerFactory workers = (level, column, row) -> new TileWorker(
+			encoder,
+			layout, level, sources[level], column, row,
+			id,
+			backgroundColor,
+			backgroundDetector,
+			openSlides,
+			archives[level],
+			tileNames,
+			checkpoint
+		);
+
+		for (int level = 0; level < levels; level++) {
+			int base = level;
+			int top = level;
+
+			while (built[base]) {
+				base--;
 			}
 
-			float start = System.currentTimeMillis();
-			int tiles = rows * cols;
+			while (top + 1 < levels && built[top + 1]) {
+				top++;
+			}
 
-			synchronized (executor) {
-				while (!executor.isQuiescent() && !hasTimedOut(start)) {
-					System.out.print("\rProcessing tiles [L=" + level + "; generated ~" + (tiles - executor.getQueuedSubmissionCount()) +" / ~" + tiles + " tiles]");
-					executor.wait(100);
+			if (base == top) {
+				if (checkpoint.isCommitted(level)) {
+					logger.debug("Level {} was already committed", level);
+					continue;
+				}
+
+				TileArchive archive = storage.createArchive(id, level, true);
+				Set<String> recovered = archive.getRecoveredTiles();
+				int archiveLevel = level;
+
+				checkpoint.verify(level, layout.getColumns(level), layout.getRows(level), (column, row) ->
+					!recovered.isEmpty() && recovered.contains(workers.create(archiveLevel, column, row).getTileName())
+				);
+
+				if (checkpoint.getDoneTiles(level) > 0) {
+					logger.debug("Resuming level {} with {} tiles already done", level, checkpoint.getDoneTiles(level));
+				}
+
+				archives[level] = deduplicate(archive, storage);
+			} else {
+				// Built levels need every tile of the level they are built from, so they are resumed
+				// only if the whole chain of levels was committed
+				boolean committed = true;
+
+				for (int l = base; l <= top; l++) {
+					committed &= checkpoint.isCommitted(l);
 				}
-			}
 
-			/* TODO: This might be called while there is still tiles being processed and result in a IOException:
-			    "Stream has already been finished" in TarTileArchive#addTile, caused by TarArchiveOutputStream:342
-			    Probably has to do when processing takes longer than the timeout period. */
-			File archive = tileArchive.save();
+				if (committed) {
+					logger.debug("Level {} was already committed", level);
+					continue;
+				}
 
-			logger.debug("Committing archive to storage");
-			storage.commitArchive(archive); // TODO: Commit async
+				checkpoint.reset(level);
+				archives[level] = deduplicate(storage.createArchive(id, level, false), storage);
+			}
 
-			logger.debug("Deleting archive file");
-			Files.delete(archive.toPath());
+			tilingLevels[level] = job.createLevel(level, archives[level]);
 		}
 
-		System.out.println();
+		PyramidBuilder pyramid = new PyramidBuilder(
+			pipeline, workers, tilingLevels, layout, built, backgroundColor, tissueMask
+		);
+
+		// Each level is uploaded as soon as it is done, while the next levels are being tiled
+		job.setUploader(level -> pipeline.upload(() -> commit(id, storage, checkpoint, level, levels)));
 
+		// Published before tiling, so that the slide can be opened as soon as its coarsest level is committed
 		generateThumbnail(id, storage);
-		generateProperties(id, storage);
+
+		if (layout.getType() == PyramidLayout.Type.DEEPZOOM) {
+			generateDeepZoomDescriptor(id, storage);
+		}
+
+		this.availableLevel = getAvailableLevel(checkpoint, levels);
+
+		if (availableLevel < levels) {
+			// Levels committed by a previous attempt
+			generateProperties(id, storage);
+		}
+
+		try {
+			// Submit every level up front so that workers move on to the next level instead of idling
+			// while the previous level is finishing. Each level is closed once its tiles are submitted,
+			// so that it is committed as soon as it is done, while the levels below it are being tiled.
+			boolean submitted = false;
+
+			try {
+				for (int level = levels - 1; level >= 0; level--) {
+					if (tilingLevels[level] == null) {
+						// Committed by a previous attempt
+						continue;
+					}
+
+					if (built[level]) {
+						// Submitted together with the level it is built from
+						continue;
+					}
+
+					if (level + 1 < levels && built[level + 1]) {
+						int top = level + 1;
+
+						while (top + 1 < levels && built[top + 1]) {
+							top++;
+						}
+
+						logger.debug("Reading level {} and building levels {}-{} from it", level, level + 1, top);
+						pyramid.submit(level, top);
+
+						for (int l = level; l <= top; l++) {
+							tilingLevels[l].close();
+						}
+
+						continue;
+					}
+
+					int columns = layout.getColumns(level);
+					int rows    = layout.getRows(level);
+
+					tilingLevels[level].setTotalTiles(columns * rows);
+
+					for (int column = 0; column < columns && !job.isCancelled(); column++) {
+						for (int row = 0; row < rows && !job.isCancelled(); row++) {
+							if (checkpoint.isDone(level, column, row)) {
+								tilingLevels[level].tileSkipped();
+								continue;
+							}
+
+							TileWorker worker = workers.create(level, column, row);
+
+							if (tissueMask != null && !worker.containsTissue(tissueMask)) {
+								tilingLevels[level].tileSkipped();
+								continue;
+							}
+
+							pipeline.submit(tilingLevels[level], worker, null);
+						}
+					}
+
+					tilingLevels[level].close();
+				}
+
+				submitted = true;
+			} finally {
+				for (TilingJob.Level tilingLevel : tilingLevels) {
+					if (tilingLevel != null) {
+						tilingLevel.close();
+					}
+				}
+
+				if (!submitted) {
+					// The tiles already submitted use the checkpoint and the OpenSlide handles, which are closed next
+					job.abort();
+				}
+			}
+
+			job.awaitLevels();
+		} catch (CancellationException e) {
+			logger.warn("Tiling {} was cancelled; the slide remains pending and can be tiled again", id);
+			this.error = "Tiling was cancelled or made no progress";
+			return;
+		} finally {
+			checkpoint.close();
+			pipeline.logStatistics();
+			logEncoderStatistics(id);
+			logDeduplicationStatistics(id);
+			logger.debug("Read {} with {} OpenSlide handles", id, openSlides.getOpenHandles());
+		}
 
 		logger.debug("Deleting original slide");
 		Files.delete(slideFile.toPath());
+		checkpoint.delete();
 
 		long endTime = System.currentTimeMillis();
 		logger.info("Took " + (endTime - startTime) / 1000.0 + " seconds to generate & upload tiles for {}.", id);
 
-		executor.shutdown();
-
-		markSlideAsTiled(id);
+		completed = true;
 	}
 
-	private void markSlideAsTiled(String id) {
-		Session session = Database.openSession();
+	/**
+	 * Commits the archive of a level to storage, deletes it and publishes the levels which became available.
+	 * Runs on the upload stage of the pipeline.
+	 */
+	private void commit(String id, StorageProvider storage, TilingCheckpoint checkpoint, TilingJob.Level level, int levels) throws IOException {
+		File archive = level.getArchive();
 
-		try {
-			session.beginTransaction();
+		long start = System.currentTimeMillis();
+		storage.commitArchive(archive);
 
-			Slide slide = session.find(Slide.class, id);
+		logger.debug("Committed level {} of {} to storage in {} ms", level.getLevel(), id, System.currentTimeMillis() - start);
+		Files.delete(archive.toPath());
 
-			if (slide == null) return;
+		checkpoint.levelCommitted(level.getLevel());
 
-			slide.setTiled(true);
+		// Levels may be committed by several upload threads at once
+		synchronized (this) {
+			int available = getAvailableLevel(checkpoint, levels);
 
-			session.save(slide);
-			session.getTransaction().commit();
-		} catch (Exception e) {
-			logger.error("Error while marking slide as tiled", e);
+			if (available != availableLevel) {
+				logger.debug("Levels {}-{} of {} are available", available, levels - 1, id);
 
-			if (session.getTransaction() != null) {
-				session.getTransaction().rollback();
+				this.availableLevel = available;
+				generateProperties(id, storage);
 			}
-		} finally {
-			session.close();
+
+			if (listener != null) {
+				listener.levelCommitted(level.getLevel(), available);
+			}
+		}
+	}
+
+	/**
+	 * Levels are committed from the top of the pyramid down, but not necessarily in order.
+	 * @return the finest level such that it and every level above it have been committed, or the number of levels.
+	 */
+	private static int getAvailableLevel(TilingCheckpoint checkpoint, int levels) {
+		int available = levels;
+
+		while (available > 0 && checkpoint.isCommitted(available - 1)) {
+			available--;
+		}
+
+		return available;
+	}
+
+	/**
+	 * @return the level of the slide with the given downsample or -1 if there is none.
+	 */
+	private static int findSourceLevel(int[] slideDownsamples, int downsample) {
+		for (int level = 0; level < slideDownsamples.length; level++) {
+			if (slideDownsamples[level] == downsample) {
+				return level;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Replaces the .jpg extension of a tile name or URI with the extension of the encoder.
+	 */
+	private String withExtension(String format) {
+		if (format.endsWith(".jpg")) {
+			return format.substring(0, format.length() - "jpg".length()) + encoder.getExtension();
+		}
+
+		return format;
+	}
+
+	private void logEncoderStatistics(String id) {
+		long encoded = 0, encodeTime = 0, written = 0, bytes = 0;
+
+		for (TilingJob.Level level : job.getLevels()) {
+			encoded    += level.getEncodedTiles();
+			encodeTime += level.getEncodeTime();
+			written    += level.getWrittenTiles();
+			bytes      += level.getBytesWritten();
+		}
+
+		if (encoded > 0 && written > 0) {
+			logger.info("Encoded {} tiles of {} with {}: {} ms and {} bytes per tile on average",
+				encoded, id, encoder.getName(), String.format("%.2f", encodeTime / 1e6 / encoded), bytes / written);
+		}
+	}
+
+	/**
+	 * Stores identical tiles of the archive once if deduplication is enabled.
+	 */
+	private TileArchive deduplicate(TileArchive archive, StorageProvider storage) {
+		if (deduplication == null || !(archive instanceof TarTileArchive tar)) {
+			return archive;
+		}
+
+		return new DeduplicatingTileArchive(tar, storage, deduplication);
+	}
+
+	private void logDeduplicationStatistics(String id) {
+		if (deduplication != null && deduplication.getTiles() > 0) {
+			logger.info("Deduplicated {} of {} tiles of {}: {} of {} bytes saved, ratio {}",
+				deduplication.getDuplicates(), deduplication.getTiles(), id,
+				deduplication.getSavedBytes(), deduplication.getBytes(), String.format("%.2f", deduplication.getRatio()));
 		}
 	}
 
@@ -243,11 +586,57 @@ public class TileGenerator implements Runnable {
 	}
 
 	/**
-	 * Generates the thumbnail for the slide and saves it using the provided StorageProvider.
+	 * Creates the background detector configured in <code>tiler.background</code>.
+	 * @return background detector or null if the slide has no background color.
+	 */
+	private BackgroundDetector createBackgroundDetector(Color backgroundColor) {
+		if (backgroundColor == null) {
+			return null;
+		}
+
+		return new BackgroundDetector(
+			backgroundColor,
+			Config.Config.getDouble("tiler.background.tolerance"),
+			Config.Config.getDouble("tiler.background.max-foreground"),
+			Config.Config.getBoolean("tiler.background.sampling")
+		);
+	}
+
+	/**
+	 * Creates the tissue mask configured in <code>tiler.tissue</code>.
+	 * @return tissue mask or null if disabled or the mask could not be created.
+	 */
+	private TissueMask createTissueMask() {
+		if (!Config.Config.getBoolean("tiler.tissue.enabled")) {
+			return null;
+		}
+
+		try {
+			TissueMask mask = TissueMask.create(
+				openSlide, layout.getOffsetX(), layout.getOffsetY(), layout.getRegionWidth(), layout.getRegionHeight(),
+				Config.Config.getInt("tiler.tissue.thumbnail-size"),
+				Config.Config.getDouble("tiler.tissue.saturation"),
+				Config.Config.getDouble("tiler.tissue.optical-density"),
+				Config.Config.getInt("tiler.tissue.margin")
+			);
+
+			logger.debug("Tissue covers {}% of the slide", Math.round(mask.getTissueFraction() * 100));
+
+			return mask;
+		} catch (IOException e) {
+			logger.warn("Error while creating tissue mask; tiling every tile", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Generates the thumbnail of the tiled region of the slide and saves it using the provided StorageProvider.
 	 */
 	private void generateThumbnail(String id, StorageProvider storageProvider) {
 		try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
-			BufferedImage thumbnail = openSlide.createThumbnailImage(500);
+			BufferedImage thumbnail = openSlide.createThumbnailImage(
+				layout.getOffsetX(), layout.getOffsetY(), layout.getRegionWidth(), layout.getRegionHeight(), 500
+			);
 
 			ImageIO.write(thumbnail, "jpg", os);
 
@@ -262,28 +651,60 @@ public class TileGenerator implements Runnable {
 
 	/**
 	 * Generates the .properties file for this slide and adds custom properties such as <b>openslide.remoteserver.uri</b>
-	 * and <b>openslide.thumbnail.uri</b>.
+	 * and <b>openslide.thumbnail.uri</b>. Written again whenever more levels become available.
 	 *
 	 * @param id id of the slide.
 	 * @param storageProvider StorageProvider used to upload this slide.
 	 */
 	private void generateProperties(String id, StorageProvider storageProvider) {
 		Map<String, String> properties = new HashMap<>(openSlide.getProperties());
-		properties.put("openslide.remoteserver.uri", storageProvider.getTilesURI().replace("{id}", id));
-		properties.put("openslide.thumbnail.uri",    storageProvider.getThumbnailURI().replace("{id}", id));
-		properties.put("openslide.level[0].tile-width", "1024");
-		properties.put("openslide.level[0].tile-height", "1024");
+		properties.put("openslide.thumbnail.uri", storageProvider.getThumbnailURI().replace("{id}", id));
+
+		properties.put(AVAILABLE_LEVEL_PROPERTY, String.valueOf(availableLevel));
+
+		if (layout.getType() == PyramidLayout.Type.DEEPZOOM) {
+			properties.put("deepzoom.uri",       storageProvider.getDeepZoomURI().replace("{id}", id));
+			properties.put("deepzoom.tile-size", String.valueOf(layout.getTileSize()));
+			properties.put("deepzoom.overlap",   String.valueOf(layout.getOverlap()));
+		} else {
+			properties.put("openslide.remoteserver.uri", withExtension(storageProvider.getTilesURI()).replace("{id}", id));
+			properties.put("openslide.level[0].tile-width",  String.valueOf(layout.getTileSize()));
+			properties.put("openslide.level[0].tile-height", String.valueOf(layout.getTileSize()));
+		}
 
 		Path propertiesFilePath = Path.of(String.format(Constants.SLIDE_PROPERTIES_FILE, id));
 		String JSON = new GsonBuilder().setPrettyPrinting().create().toJson(properties);
 
 		try {
-			Files.writeString(propertiesFilePath, JSON);
+			// Replaced atomically, as the properties may be read while the slide is being tiled
+			Path temp = Files.writeString(propertiesFilePath.resolveSibling(propertiesFilePath.getFileName() + ".tmp"), JSON);
+			Files.move(temp, propertiesFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 		} catch (IOException e) {
 			logger.error("Error while saving {} properties file", id, e);
 		}
 	}
 
+	/**
+	 * Generates the DeepZoom descriptor (.dzi) of a slide tiled with the DeepZoom layout.
+	 *
+	 * @param id id of the slide.
+	 * @param storageProvider StorageProvider used to upload this slide.
+	 */
+	private void generateDeepZoomDescriptor(String id, StorageProvider storageProvider) {
+		String descriptor = String.format(
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+			"<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"%s\" Overlap=\"%d\" TileSize=\"%d\">\n" +
+			"    <Size Width=\"%d\" Height=\"%d\"/>\n" +
+			"</Image>\n",
+			encoder.getExtension(), layout.getOverlap(), layout.getTileSize(), layout.getRegionWidth(), layout.getRegionHeight()
+		);
+
+		storageProvider.commitFile(
+			descriptor.getBytes(StandardCharsets.UTF_8),
+			storageProvider.getDeepZoomNamingFormat().replace("{id}", id)
+		);
+	}
+
 	private String readStringProperty(String property) {
 		return openSlide.getProperties().get(property);
 	}
@@ -296,8 +717,107 @@ public class TileGenerator implements Runnable {
 		return Integer.parseInt(openSlide.getProperties().get(property));
 	}
 
-	private boolean hasTimedOut(float startTime) {
-		return (System.currentTimeMillis() - startTime) > TIMEOUT;
+	private int readIntegerPropertyOrDefault(String property, int defaultValue) {
+		String value = openSlide.getProperties().get(property);
+
+		try {
+			return value == null ? defaultValue : Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			logger.debug("Unable to parse {}: {}", property, value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Cancels tile generation if it is running. Tiles being processed are finished, but
+	 * no further tiles are generated and the slide is not committed.
+	 */
+	public void cancel() {
+		if (job != null) {
+			job.cancel();
+		}
+	}
+
+	/**
+	 * @return the job tiling the slide or null if tiling hasn't started.
+	 */
+	public TilingJob getJob() {
+		return job;
+	}
+
+	/**
+	 * @return the encoder compressing the tiles or null if tiling hasn't started.
+	 */
+	public TileEncoder getEncoder() {
+		return encoder;
+	}
+
+	/**
+	 * @return the layout of the tiled pyramid or null if tiling hasn't started.
+	 */
+	public PyramidLayout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * @return encoder, layout and progress of the slide or null if tiling hasn't started.
+	 */
+	public Map<String, Object> getStatus() {
+		TilingJob job = this.job;
+
+		if (job == null) {
+			return null;
+		}
+
+		Map<String, Object> status = new LinkedHashMap<>();
+		status.put("encoder", encoder.getName());
+		status.put("tileSize", layout.getTileSize());
+		status.put("overlap", layout.getOverlap());
+		status.put("layout", layout.getType().getName());
+		status.put("availableLevel", availableLevel);
+		status.put("progress", job.getProgress());
+
+		if (deduplication != null) {
+			status.put("deduplication", deduplication.toMap());
+		}
+
+		if (error != null) {
+			status.put("error", error);
+		}
+
+		return status;
+	}
+
+	/**
+	 * @return deduplication statistics of the slide or null if its tiles are not deduplicated.
+	 */
+	public DeduplicatingTileArchive.Statistics getDeduplication() {
+		return deduplication;
+	}
+
+	/**
+	 * @return true if the slide was tiled and committed successfully.
+	 */
+	public boolean isCompleted() {
+		return completed;
+	}
+
+	/**
+	 * @return why tiling failed, such as an archive which couldn't be committed, or null if it hasn't failed.
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * @return message of the exception, followed by the message of its cause if it has one.
+	 */
+	private static String getMessage(Exception e) {
+		if (e.getCause() != null && e.getCause().getMessage() != null) {
+			return e.getMessage() + ": " + e.getCause().getMessage();
+		}
+
+		return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
 	}
 
 	public File getSlideFile() {
@@ -0,0 +1,115 @@
+package fi.ylihallila.server.generators;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A tile naming format which is parsed once and can then be formatted for each tile without repeated
+ * string replacements. Supports the placeholders of {@link fi.ylihallila.server.storage.StorageProvider#getTileNamingFormat()}:
+ * <code>{id}, {level}, {tileX}, {tileY}, {tileHeight}, {tileWidth}</code>, and the tile indices <code>{column}, {row}</code>
+ * of {@link fi.ylihallila.server.storage.StorageProvider#getDeepZoomTileNamingFormat()}. Unknown placeholders are kept as is.
+ */
+public class TileNameTemplate {
+
+	private static final ThreadLocal<StringBuilder> builders = ThreadLocal.withInitial(() -> new StringBuilder(128));
+
+	private enum Placeholder {
+		ID("{id}"),
+		LEVEL("{level}"),
+		TILE_X("{tileX}"),
+		TILE_Y("{tileY}"),
+		TILE_WIDTH("{tileWidth}"),
+		TILE_HEIGHT("{tileHeight}"),
+		COLUMN("{column}"),
+		ROW("{row}");
+
+		private final String token;
+
+		Placeholder(String token) {
+			this.token = token;
+		}
+	}
+
+	/**
+	 * Literal text preceding each placeholder; the last element is the text after the last placeholder.
+	 */
+	private final String[] literals;
+	private final Placeholder[] placeholders;
+
+	private final String format;
+
+	public TileNameTemplate(String format) {
+		this.format = format;
+
+		List<String> literals = new ArrayList<>();
+		List<Placeholder> placeholders = new ArrayList<>();
+
+		StringBuilder literal = new StringBuilder();
+		int i = 0;
+
+		while (i < format.length()) {
+			Placeholder placeholder = placeholderAt(format, i);
+
+			if (placeholder == null) {
+				literal.append(format.charAt(i++));
+			} else {
+				literals.add(literal.toString());
+				placeholders.add(placeholder);
+				literal.setLength(0);
+
+				i += placeholder.token.length();
+			}
+		}
+
+		literals.add(literal.toString());
+
+		this.literals = literals.toArray(new String[0]);
+		this.placeholders = placeholders.toArray(new Placeholder[0]);
+	}
+
+	/**
+	 * @param column horizontal index of the tile on its level.
+	 * @param row vertical index of the tile on its level.
+	 */
+	public String format(String id, int level, int tileX, int tileY, int tileWidth, int tileHeight, int column, int row) {
+		StringBuilder name = builders.get();
+		name.setLength(0);
+
+		for (int i = 0; i < placeholders.length; i++) {
+			name.append(literals[i]);
+
+			switch (placeholders[i]) {
+				case ID          -> name.append(id);
+				case LEVEL       -> name.append(level);
+				case TILE_X      -> name.append(tileX);
+				case TILE_Y      -> name.append(tileY);
+				case TILE_WIDTH  -> name.append(tileWidth);
+				case TILE_HEIGHT -> name.append(tileHeight);
+				case COLUMN      -> name.append(column);
+				case ROW         -> name.append(row);
+			}
+		}
+
+		name.append(literals[placeholders.length]);
+
+		return name.toString();
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	private static Placeholder placeholderAt(String format, int index) {
+		if (format.charAt(index) != '{') {
+			return null;
+		}
+
+		for (Placeholder placeholder : Placeholder.values()) {
+			if (format.startsWith(placeholder.token, index)) {
+				return placeholder;
+			}
+		}
+
+		return null;
+	}
+}
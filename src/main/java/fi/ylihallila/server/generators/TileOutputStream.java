@@ -0,0 +1,97 @@
+package fi.ylihallila.server.generators;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An in-memory {@link javax.imageio.stream.ImageOutputStream} which can be cleared and reused. Unlike
+ * {@link javax.imageio.stream.MemoryCacheImageOutputStream} it writes into a single growing array, so
+ * encoding a tile only allocates the returned bytes once the buffer has grown to fit a tile.
+ */
+public class TileOutputStream extends ImageOutputStreamImpl {
+
+	private byte[] buffer;
+	private int length = 0;
+
+	public TileOutputStream(int capacity) {
+		this.buffer = new byte[capacity];
+	}
+
+	/**
+	 * Discards everything written so far.
+	 */
+	public void clear() {
+		length = 0;
+		streamPos = 0;
+		flushedPos = 0;
+		bitOffset = 0;
+	}
+
+	/**
+	 * @return a copy of the bytes written since the last {@link #clear()}.
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, length);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		flushBits();
+		ensureCapacity(streamPos + 1);
+
+		buffer[(int) streamPos++] = (byte) b;
+		length = (int) Math.max(length, streamPos);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		flushBits();
+		ensureCapacity(streamPos + len);
+
+		System.arraycopy(b, off, buffer, (int) streamPos, len);
+		streamPos += len;
+		length = (int) Math.max(length, streamPos);
+	}
+
+	@Override
+	public int read() throws IOException {
+		bitOffset = 0;
+
+		if (streamPos >= length) {
+			return -1;
+		}
+
+		return buffer[(int) streamPos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		bitOffset = 0;
+
+		if (streamPos >= length) {
+			return -1;
+		}
+
+		int read = (int) Math.min(len, length - streamPos);
+		System.arraycopy(buffer, (int) streamPos, b, off, read);
+		streamPos += read;
+
+		return read;
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	private void ensureCapacity(long capacity) throws IOException {
+		if (capacity > Integer.MAX_VALUE - 8) {
+			throw new IOException("Tile too large to buffer in memory");
+		}
+
+		if (capacity > buffer.length) {
+			buffer = Arrays.copyOf(buffer, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(capacity, buffer.length * 2L)));
+		}
+	}
+}
@@ -0,0 +1,587 @@
+package fi.ylihallila.server.generators;
+
+import fi.ylihallila.server.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes tiles in four stages, each with its own threads:
+ * <ol>
+ *     <li><b>read</b> -- reads the tile from OpenSlide. Mostly waits on I/O.</li>
+ *     <li><b>composite</b> -- flattens the tile onto the background color.</li>
+ *     <li><b>encode</b> -- compresses the tile.</li>
+ *     <li><b>archive</b> -- adds the tile to the archive of its level.</li>
+ * </ol>
+ * Every stage has a bounded queue in front of it. When the queue of a stage is full, the stage before it
+ * blocks until there is room, so a slow stage throttles the whole pipeline instead of tiles piling up in memory.
+ * <p>
+ * The archives of finished levels are committed to storage on a separate <b>upload</b> stage, see
+ * {@link #upload(Upload)}, so that a level is uploaded while the next levels are being tiled.
+ * <p>
+ * Pixels are passed from stage to stage in buffers taken from a pool, as tiles no longer stay on one thread.
+ * Every tile is counted against its {@link TilingJob.Level} until it has been archived, skipped or has failed.
+ * <p>
+ * The memory used by the pipeline is bounded regardless of the size of the slide: {@link #submit} blocks while
+ * the maximum number of tiles is in flight, and the pixel buffers are limited by a memory budget.
+ */
+public class TilePipeline {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	/**
+	 * Notified once a tile has been composited, before it is encoded.
+	 */
+	public interface RenderListener {
+
+		/**
+		 * @param img the composited tile, only valid during this call, or null if the tile was skipped
+		 *            or could not be read.
+		 */
+		void tileRendered(BufferedImage img);
+	}
+
+	/**
+	 * Commits the archive of a level to storage; see {@link #upload(Upload)}.
+	 */
+	public interface Upload {
+		void run() throws Exception;
+	}
+
+	private final Stage read;
+	private final Stage composite;
+	private final Stage encode;
+	private final Stage archive;
+	private final Stage upload;
+
+	private final BufferPool argbBuffers;
+	private final BufferPool rgbBuffers;
+
+	/**
+	 * Tiles submitted with {@link #submit} which have not finished yet.
+	 */
+	private final Semaphore inFlight;
+	private final int maxInFlight;
+
+	private final int tileWidth;
+	private final int tileHeight;
+
+	/**
+	 * @param tileWidth width of the largest tile.
+	 * @param tileHeight height of the largest tile.
+	 * @param queueSize number of tiles queued in front of each stage.
+	 * @param uploadQueueSize number of archives waiting to be committed before {@link #upload(Upload)} blocks.
+	 * @param maxInFlight maximum number of submitted tiles which have not finished yet.
+	 * @param bufferMemory memory in bytes for pixel buffers, split evenly between the read and the encode side
+	 *                     of the pipeline. At least one buffer is allocated for each side.
+	 */
+	public TilePipeline(int tileWidth, int tileHeight, int readThreads, int compositeThreads, int encodeThreads, int archiveThreads,
+	                    int uploadThreads, int queueSize, int uploadQueueSize, int maxInFlight, long bufferMemory) {
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+
+		this.read      = new Stage("read",      readThreads,      queueSize);
+		this.composite = new Stage("composite", compositeThreads, queueSize);
+		this.encode    = new Stage("encode",    encodeThreads,    queueSize);
+		this.archive   = new Stage("archive",   archiveThreads,   queueSize);
+		this.upload    = new Stage("upload",    uploadThreads,    uploadQueueSize);
+
+		// No more buffers than there can be tiles between acquiring and releasing one
+		long bufferSize = 4L * tileWidth * tileHeight;
+		int buffers = (int) Math.max(1, Math.min(Integer.MAX_VALUE, bufferMemory / 2 / bufferSize));
+
+		this.argbBuffers = new BufferPool(tileWidth * tileHeight, Math.min(buffers, readThreads + queueSize + compositeThreads));
+		this.rgbBuffers  = new BufferPool(tileWidth * tileHeight, Math.min(buffers, compositeThreads + queueSize + encodeThreads));
+
+		this.maxInFlight = Math.max(1, maxInFlight);
+		// Fair, so that slides being tiled at the same time take turns submitting tiles
+		this.inFlight = new Semaphore(this.maxInFlight, true);
+	}
+
+	/**
+	 * Submits a tile to be read, composited, encoded and archived. Blocks while the maximum number of
+	 * tiles is in flight or the read stage is full.
+	 *
+	 * @param listener notified when the tile has been composited, or if it was skipped; may be null.
+	 */
+	public void submit(TilingJob.Level level, TileWorker worker, RenderListener listener) throws InterruptedException {
+		inFlight.acquire();
+		level.expect(1);
+
+		Task task = new Task(level, worker, listener);
+		task.permit = true;
+
+		try {
+			read.execute(guard(task, () -> read(task)));
+		} catch (InterruptedException | RejectedExecutionException e) {
+			task.done();
+			throw e;
+		}
+	}
+
+	/**
+	 * Submits an already rendered tile to be encoded and archived. The tile must already be counted
+	 * with {@link TilingJob.Level#expect(int)}; {@link TilingJob.Level#tileDone()} is called once it is done.
+	 * <p>
+	 * Unlike {@link #submit}, this doesn't wait for the in-flight limit, as it's called from the pipeline
+	 * threads which release it; built tiles are already bounded by the tiles they are built from.
+	 *
+	 * @param img tile which must not be modified afterwards.
+	 */
+	public void write(TilingJob.Level level, TileWorker worker, BufferedImage img) {
+		Task task = new Task(level, worker, null);
+		task.image = img;
+
+		handOff(encode, task, () -> encode(task));
+	}
+
+	private void read(Task task) {
+		if (task.level.isCancelled() || task.worker.isEmpty()) {
+			task.done();
+			return;
+		}
+
+		try {
+			task.argb = argbBuffers.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			task.done();
+			return;
+		}
+
+		if (!task.worker.read(task.argb)) {
+			task.done();
+			return;
+		}
+
+		handOff(composite, task, () -> composite(task));
+	}
+
+	private void composite(Task task) {
+		if (task.level.isCancelled()) {
+			task.done();
+			return;
+		}
+
+		try {
+			task.rgb = rgbBuffers.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			task.done();
+			return;
+		}
+
+		task.image = task.worker.composite(task.argb, task.rgb);
+
+		argbBuffers.release(task.argb);
+		task.argb = null;
+
+		task.rendered(task.image);
+
+		handOff(encode, task, () -> encode(task));
+	}
+
+	private void encode(Task task) {
+		if (task.level.isCancelled() || task.image == null) {
+			task.done();
+			return;
+		}
+
+		if (task.worker.isBackground(task.image)) {
+			task.worker.skippedAsBackground();
+			task.level.tileBackground();
+			task.done();
+			return;
+		}
+
+		long start = System.nanoTime();
+
+		task.bytes = task.worker.encode(task.image);
+		task.image = null;
+
+		if (task.bytes != null) {
+			task.crc = task.worker.checksum(task.bytes);
+			task.level.tileEncoded(System.nanoTime() - start);
+		}
+
+		// Built tiles aren't backed by a pooled buffer
+		if (task.rgb != null) {
+			rgbBuffers.release(task.rgb);
+			task.rgb = null;
+		}
+
+		if (task.bytes == null) {
+			task.done();
+			return;
+		}
+
+		handOff(archive, task, () -> {
+			if (task.worker.store(task.bytes, task.crc)) {
+				task.level.tileWritten(task.bytes.length);
+			}
+
+			task.done();
+		});
+	}
+
+	/**
+	 * Commits the archive of a level on the upload stage, waiting while the queue of the stage is full. Tiling
+	 * continues while archives are uploaded, but the archive stage, which seals levels, waits once
+	 * <code>uploadQueueSize</code> archives are waiting, so that they can't pile up on disk.
+	 *
+	 * @return completes once the upload has run, or exceptionally if it failed.
+	 */
+	public CompletableFuture<Void> upload(Upload task) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+
+		try {
+			upload.execute(() -> {
+				try {
+					task.run();
+					future.complete(null);
+				} catch (Exception e) {
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.completeExceptionally(e);
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+
+		return future;
+	}
+
+	/**
+	 * Passes a task on to the next stage, waiting for room in its queue.
+	 */
+	private void handOff(Stage stage, Task task, Runnable runnable) {
+		try {
+			stage.execute(guard(task, runnable));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			task.done();
+		} catch (RejectedExecutionException e) {
+			task.done();
+		}
+	}
+
+	/**
+	 * Finishes the task if the runnable fails unexpectedly, so that its level can still be sealed.
+	 */
+	private Runnable guard(Task task, Runnable runnable) {
+		return () -> {
+			try {
+				runnable.run();
+			} catch (Exception e) {
+				logger.error("Error while processing tile", e);
+				task.done();
+			}
+		};
+	}
+
+	/**
+	 * @return the stages of this pipeline, in order, followed by the upload stage.
+	 */
+	public List<Stage> getStages() {
+		return List.of(read, composite, encode, archive, upload);
+	}
+
+	/**
+	 * @return width of the largest tile the pipeline has buffers for.
+	 */
+	public int getTileWidth() {
+		return tileWidth;
+	}
+
+	/**
+	 * @return height of the largest tile the pipeline has buffers for.
+	 */
+	public int getTileHeight() {
+		return tileHeight;
+	}
+
+	/**
+	 * @return number of threads reading tiles from OpenSlide.
+	 */
+	public int getReadThreads() {
+		return read.getThreads();
+	}
+
+	/**
+	 * @return number of submitted tiles which have not finished yet.
+	 */
+	public int getInFlight() {
+		return maxInFlight - inFlight.availablePermits();
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * @return memory in bytes of the pixel buffers allocated so far.
+	 */
+	public long getBufferMemory() {
+		return argbBuffers.getAllocatedMemory() + rgbBuffers.getAllocatedMemory();
+	}
+
+	/**
+	 * Logs the queue depth and throughput of every stage.
+	 */
+	public void logStatistics() {
+		logger.debug("{} MB of pixel buffers allocated", getBufferMemory() / 1024 / 1024);
+
+		for (Stage stage : getStages()) {
+			logger.debug("{}", stage);
+		}
+	}
+
+	/**
+	 * Stops every stage. Tiles still in the pipeline are discarded.
+	 */
+	public void shutdown() {
+		for (Stage stage : getStages()) {
+			stage.executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * A tile moving through the pipeline, along with the buffers it currently holds.
+	 */
+	private class Task {
+
+		private final TilingJob.Level level;
+		private final TileWorker worker;
+		private RenderListener listener;
+
+		/**
+		 * True if this tile holds one of the in-flight permits.
+		 */
+		private boolean permit;
+
+		private int[] argb;
+		private int[] rgb;
+		private BufferedImage image;
+		private byte[] bytes;
+
+		/**
+		 * Checksum of the compressed tile, or -1 if the archive doesn't store checksums.
+		 */
+		private long crc = -1;
+
+		private Task(TilingJob.Level level, TileWorker worker, RenderListener listener) {
+			this.level = level;
+			this.worker = worker;
+			this.listener = listener;
+		}
+
+		/**
+		 * Notifies the listener, at most once.
+		 */
+		private void rendered(BufferedImage img) {
+			if (listener != null) {
+				RenderListener listener = this.listener;
+				this.listener = null;
+
+				try {
+					listener.tileRendered(img);
+				} catch (Exception e) {
+					logger.error("Error while processing rendered tile", e);
+				}
+			}
+		}
+
+		/**
+		 * Releases the buffers of this tile and marks it as finished.
+		 */
+		private void done() {
+			try {
+				rendered(null);
+			} finally {
+				if (argb != null) {
+					argbBuffers.release(argb);
+					argb = null;
+				}
+
+				if (rgb != null) {
+					rgbBuffers.release(rgb);
+					rgb = null;
+				}
+
+				image = null;
+				bytes = null;
+
+				if (permit) {
+					permit = false;
+					inFlight.release();
+				}
+
+				level.tileDone();
+			}
+		}
+	}
+
+	/**
+	 * A stage of the pipeline: a fixed number of threads fed by a bounded queue.
+	 */
+	public static class Stage {
+
+		private final String name;
+		private final int threads;
+		private final int capacity;
+
+		private final ThreadPoolExecutor executor;
+
+		private final AtomicLong processed = new AtomicLong();
+		private final AtomicLong busyNanos = new AtomicLong();
+		private final AtomicLong blockedNanos = new AtomicLong();
+		private final long startTime = System.nanoTime();
+
+		private Stage(String name, int threads, int capacity) {
+			this.name = name;
+			this.threads = threads;
+			this.capacity = capacity;
+			this.executor = new ThreadPoolExecutor(
+				threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(capacity),
+				new NamedThreadFactory("tiler-" + name)
+			);
+
+			executor.prestartAllCoreThreads();
+		}
+
+		/**
+		 * Runs the task on this stage, waiting while the queue of this stage is full.
+		 */
+		private void execute(Runnable task) throws InterruptedException {
+			Runnable measured = () -> {
+				long start = System.nanoTime();
+
+				try {
+					task.run();
+				} finally {
+					busyNanos.addAndGet(System.nanoTime() - start);
+					processed.incrementAndGet();
+				}
+			};
+
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("Stage " + name + " has been shut down");
+			}
+
+			// Every thread is started up front and takes its tasks from the queue
+			long start = System.nanoTime();
+			executor.getQueue().put(measured);
+			blockedNanos.addAndGet(System.nanoTime() - start);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		/**
+		 * @return number of tiles waiting in the queue of this stage.
+		 */
+		public int getQueueDepth() {
+			return executor.getQueue().size();
+		}
+
+		public int getQueueCapacity() {
+			return capacity;
+		}
+
+		/**
+		 * @return number of tiles, or archives on the upload stage, processed by this stage.
+		 */
+		public long getProcessed() {
+			return processed.get();
+		}
+
+		/**
+		 * @return tiles processed per second since this stage was started.
+		 */
+		public double getThroughput() {
+			double seconds = (System.nanoTime() - startTime) / 1e9;
+
+			return seconds > 0 ? processed.get() / seconds : 0;
+		}
+
+		/**
+		 * @return fraction of time the threads of this stage have spent processing tiles, 0-1. This includes
+		 * time spent waiting for room in the queue of the next stage.
+		 */
+		public double getUtilization() {
+			long elapsed = (System.nanoTime() - startTime) * threads;
+
+			return elapsed > 0 ? 1.0 * busyNanos.get() / elapsed : 0;
+		}
+
+		/**
+		 * @return total time in milliseconds the previous stage has waited for room in the queue of this stage.
+		 * A stage which keeps the previous stage waiting is a bottleneck.
+		 */
+		public long getBlockedTime() {
+			return TimeUnit.NANOSECONDS.toMillis(blockedNanos.get());
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d threads, queue %d/%d, %d processed, %.1f/s, %.0f%% busy, blocked for %d ms",
+				name, threads, getQueueDepth(), capacity, getProcessed(), getThroughput(), getUtilization() * 100, getBlockedTime());
+		}
+	}
+
+	/**
+	 * Pixel buffers of a fixed size. New buffers are allocated until the limit is reached, after which
+	 * {@link #acquire()} waits for a buffer to be released.
+	 */
+	private static class BufferPool {
+
+		private final int size;
+		private final int limit;
+
+		private final BlockingQueue<int[]> buffers;
+		private final AtomicInteger allocated = new AtomicInteger();
+
+		private BufferPool(int size, int limit) {
+			this.size = size;
+			this.limit = limit;
+			this.buffers = new ArrayBlockingQueue<>(limit);
+		}
+
+		private int[] acquire() throws InterruptedException {
+			int[] buffer = buffers.poll();
+
+			if (buffer != null) {
+				return buffer;
+			}
+
+			if (allocated.incrementAndGet() <= limit) {
+				return new int[size];
+			}
+
+			allocated.decrementAndGet();
+
+			return buffers.take();
+		}
+
+		private void release(int[] buffer) {
+			buffers.offer(buffer);
+		}
+
+		private long getAllocatedMemory() {
+			return 4L * size * Math.min(limit, allocated.get());
+		}
+	}
+}
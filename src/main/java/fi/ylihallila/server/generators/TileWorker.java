@@ -1,173 +1,232 @@
 package fi.ylihallila.server.generators;
 
 import fi.ylihallila.server.archivers.TileArchive;
-import fi.ylihallila.server.storage.StorageProvider;
 import org.openslide.OpenSlide;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.MemoryCacheImageOutputStream;
 import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferInt;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.awt.image.*;
+import java.util.zip.CRC32;
 
-public class TileWorker implements Runnable {
+public class TileWorker {
 
 	private final Logger logger = LoggerFactory.getLogger(TileWorker.class);
 
+	private static final DirectColorModel RGB = new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF);
+
 	private final String slideName;
 	private final Color bgColor;
+	private final BackgroundDetector backgroundDetector;
 
-	private final int compression;
+	private final TileEncoder encoder;
 
 	private final int level;
+	private final int levelName;
+	private final int sourceLevel;
+	private final int downsample;
+
+	/**
+	 * Horizontal index of the tile in the grid of its level.
+	 */
+	private final int column;
+
+	/**
+	 * Vertical index of the tile in the grid of its level.
+	 */
+	private final int row;
+
 	private final int tileX;
 	private final int tileY;
 
 	private final int tileWidth;
 	private final int tileHeight;
 
-	private final OpenSlide openSlide;
+	private final OpenSlidePool openSlides;
 	private final TileArchive archive;
-	private final StorageProvider storageProvider;
+	private final TileNameTemplate tileNames;
+	private final TilingCheckpoint checkpoint;
 
-	public TileWorker(int compression, int downsample, int level, int row, int col, int offsetX, int offsetY, int tileWidth, int tileHeight, int slideWidth, int slideHeight, String slideName, Color bgColor, OpenSlide openSlide, TileArchive archive, StorageProvider storageProvider) {
-		this.compression = compression;
+	/**
+	 * @param level level of the pyramid, see {@link PyramidLayout}.
+	 * @param sourceLevel level of the slide the tile is read from; the downsample of both levels must match.
+	 *                    Not used for tiles which are built by {@link PyramidBuilder}.
+	 * @param column horizontal index of the tile.
+	 * @param row vertical index of the tile.
+	 */
+	public TileWorker(TileEncoder encoder, PyramidLayout layout, int level, int sourceLevel, int column, int row, String slideName, Color bgColor, BackgroundDetector backgroundDetector, OpenSlidePool openSlides, TileArchive archive, TileNameTemplate tileNames, TilingCheckpoint checkpoint) {
+		this.encoder = encoder;
 		this.slideName = slideName;
 		this.bgColor = bgColor;
+		this.backgroundDetector = backgroundDetector;
 		this.level = level;
+		this.levelName = layout.getLevelName(level);
+		this.sourceLevel = sourceLevel;
+		this.downsample = layout.getDownsample(level);
+		this.column = column;
+		this.row = row;
 
-		this.tileY = col * tileHeight * downsample + offsetY;
-		this.tileX = row * tileWidth  * downsample + offsetX;
-
-		int adjustX = 0;
-		int adjustY = 0;
-
-		if ((tileX + downsample * tileWidth) > slideWidth) {
-			adjustX = tileWidth - Math.abs((tileX - slideWidth) / downsample);
-		}
-
-		if ((tileY + downsample * tileHeight) > slideHeight) {
-			adjustY = tileHeight - Math.abs((tileY - slideHeight) / downsample);
-		}
+		this.tileY = layout.toLevel0Y(level, layout.getTileY(row));
+		this.tileX = layout.toLevel0X(level, layout.getTileX(column));
 
-		this.tileHeight = tileHeight - adjustY;
-		this.tileWidth  = tileWidth  - adjustX;
+		this.tileHeight = layout.getTileHeight(level, row);
+		this.tileWidth  = layout.getTileWidth(level, column);
 
-		this.openSlide = openSlide;
+		this.openSlides = openSlides;
 		this.archive = archive;
-		this.storageProvider = storageProvider;
+		this.tileNames = tileNames;
+		this.checkpoint = checkpoint;
 	}
 
-	@Override
-	public void run() {
-		try {
-			if (tileWidth == 0 || tileHeight == 0) {
-				return;
-			}
-
-			BufferedImage temp = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_ARGB_PRE);
-			int[] data = ((DataBufferInt) temp.getRaster().getDataBuffer()).getData();
+	/**
+	 * @return true if the tile lies outside of the slide and has nothing to read.
+	 */
+	public boolean isEmpty() {
+		return tileWidth == 0 || tileHeight == 0;
+	}
 
-			openSlide.paintRegionARGB(data, tileX, tileY, level, tileWidth, tileHeight);
+	/**
+	 * Reads the tile from OpenSlide, with a handle borrowed from the pool of the slide.
+	 *
+	 * @param argb buffer of at least <code>tileWidth * tileHeight</code> pixels to read the premultiplied ARGB pixels into.
+	 * @return true if the tile was read successfully.
+	 */
+	public boolean read(int[] argb) {
+		OpenSlide openSlide = null;
 
-			BufferedImage img = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB);
-			Graphics2D g2d = img.createGraphics();
+		try {
+			openSlide = openSlides.borrow();
+			openSlide.paintRegionARGB(argb, tileX, tileY, sourceLevel, tileWidth, tileHeight);
 
-			if (bgColor != null) {
-				g2d.setColor(bgColor);
-				g2d.fillRect(0, 0, tileWidth, tileHeight);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			logger.error("Error when reading tile: {}, level: {}, column: {}, row: {}, x/y: {}/{}, width/height: {}/{}", slideName, level, column, row, tileX, tileY, tileWidth, tileHeight, e);
+		} finally {
+			if (openSlide != null) {
+				openSlides.release(openSlide);
 			}
+		}
 
-			g2d.drawImage(temp, 0, 0, tileWidth, tileHeight, null);
-			g2d.dispose();
+		return false;
+	}
 
-			if (bgColor != null && isBackgroundTile(img)) {
-				return;
-			}
+	/**
+	 * Flattens a tile read by {@link #read(int[])} onto the background color.
+	 *
+	 * @param argb pixels read by {@link #read(int[])}.
+	 * @param rgb buffer of at least <code>tileWidth * tileHeight</code> pixels for the flattened tile.
+	 * @return the tile, backed by <code>rgb</code>.
+	 */
+	public BufferedImage composite(int[] argb, int[] rgb) {
+		// The buffer is reused, so pixels are always flattened onto a color; black matches a newly allocated image
+		TileCompositor.flatten(argb, rgb, tileWidth * tileHeight, bgColor != null ? bgColor.getRGB() : 0);
 
-			String fileName = storageProvider.getTileNamingFormat()
-					.replace("{id}", slideName)
-					.replace("{level}", String.valueOf(level))
-					.replace("{tileX}", String.valueOf(tileX))
-					.replace("{tileY}", String.valueOf(tileY))
-					.replace("{tileHeight}", String.valueOf(tileHeight))
-					.replace("{tileWidth}", String.valueOf(tileWidth));
+		return wrap(rgb, RGB);
+	}
 
-			archive.addTile(fileName, compressImage(img));
+	/**
+	 * @return true if the tile is considered background and should not be saved.
+	 */
+	public boolean isBackground(BufferedImage img) {
+		return backgroundDetector != null && backgroundDetector.isBackground(img);
+	}
+
+	/**
+	 * Compress a tile using the encoder of the slide.
+	 *
+	 * @return the compressed tile or null if compressing it failed.
+	 */
+	public byte[] encode(BufferedImage img) {
+		try {
+			return encoder.encode(img);
 		} catch (Exception e) {
-			logger.error("Error when generating tile: {}, row: {}, col: {}, x/y: {}/{}", slideName, tileX, tileY, tileWidth, tileHeight);
-			e.printStackTrace();
+			logger.error("Error when generating tile: {}, level: {}, column: {}, row: {}, x/y: {}/{}, width/height: {}/{}", slideName, level, column, row, tileX, tileY, tileWidth, tileHeight, e);
 		}
+
+		return null;
 	}
 
 	/**
-	 * Compress a tile using lossy JPEG compression.
+	 * Computes the checksum of a compressed tile if the archive stores checksums, so that it is computed by the
+	 * encode stage rather than by the single writer of the archive.
+	 *
+	 * @return CRC-32 of the tile or -1 if the archive doesn't store checksums.
 	 */
-	private byte[] compressImage(BufferedImage img) throws IOException {
-		try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
-			ImageWriter     writer = ImageIO.getImageWritersByFormatName("jpg").next();
-			ImageWriteParam params = writer.getDefaultWriteParam();
-			params.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-			params.setCompressionQuality(compression / 100.0f);
-
-			writer.setOutput(new MemoryCacheImageOutputStream(os));
+	public long checksum(byte[] bytes) {
+		if (!archive.isChecksummed()) {
+			return -1;
+		}
 
-			IIOImage output = new IIOImage(img, null, null);
-			writer.write(null, output, params);
-			writer.dispose();
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
 
-			os.flush();
+		return crc.getValue();
+	}
 
-			return os.toByteArray();
+	/**
+	 * Records that the tile was not saved because it is background.
+	 */
+	public void skippedAsBackground() {
+		if (checkpoint != null) {
+			checkpoint.tileSkipped(level, column, row);
 		}
 	}
 
 	/**
-	 * Checks if the tile can be considered background. Similar tones to background color are
-	 * ignored and a total of 1% of the pixels can be entirely different for the tile to be
-	 * considered background.
-	 * @param img BufferedImage of tile to check
-	 * @return true if to be considered background
+	 * Adds a compressed tile to the archive. The tile is recorded in the checkpoint once the archive has written it.
+	 *
+	 * @param crc checksum of the tile computed by {@link #checksum(byte[])}.
+	 * @return true if the tile was added.
 	 */
-	private boolean isBackgroundTile(BufferedImage img) {
-		int w = img.getWidth();
-		int h = img.getHeight();
-
-		int pixelsNotBackground = 0;
-		int maxPixelsDifferent = (int) Math.ceil(0.01f * w * h);
-
-		for (int x = 0; x < w; x++) {
-			for (int y = 0; y < h; y++) {
-				if (img.getRGB(x, y) > scaleColor(bgColor, 1.05).getRGB() ||
-					img.getRGB(x, y) < scaleColor(bgColor, 0.95).getRGB()) {
+	public boolean store(byte[] bytes, long crc) {
+		try {
+			Runnable written = checkpoint == null ? null : () -> checkpoint.tileWritten(level, column, row);
 
-					pixelsNotBackground++;
+			boolean added = crc == -1
+				? archive.addTile(getTileName(), bytes, written)
+				: archive.addTile(getTileName(), bytes, crc, written);
 
-					if (pixelsNotBackground > maxPixelsDifferent) {
-						return false;
-					}
-				}
+			if (added) {
+				return true;
 			}
+		} catch (Exception e) {
+			logger.error("Error when saving tile: {}, level: {}, column: {}, row: {}, x/y: {}/{}, width/height: {}/{}", slideName, level, column, row, tileX, tileY, tileWidth, tileHeight, e);
 		}
 
-		return true;
+		return false;
+	}
+
+	/**
+	 * @return true if the area of the slide covered by this tile overlaps tissue in the given mask.
+	 */
+	public boolean containsTissue(TissueMask mask) {
+		return mask.containsTissue(tileX, tileY, (long) tileWidth * downsample, (long) tileHeight * downsample);
 	}
 
-	private Color scaleColor(Color color, double factor) {
-		return new Color(do8BitRangeCheck(color.getRed() * factor),
-				do8BitRangeCheck(color.getGreen() * factor),
-				do8BitRangeCheck(color.getBlue() * factor),
-				color.getAlpha());
+	/**
+	 * @return name of the tile in the archive.
+	 */
+	public String getTileName() {
+		return tileNames.format(slideName, levelName, tileX, tileY, tileWidth, tileHeight, column, row);
 	}
 
-	private int do8BitRangeCheck(double v) {
-		return v < 0 ? 0 : (v > 255 ? 255 : (int)v);
+	public int getTileWidth() {
+		return tileWidth;
+	}
+
+	public int getTileHeight() {
+		return tileHeight;
+	}
+
+	/**
+	 * Wraps a pixel buffer, which may be larger than this tile, in an image of the size of this tile.
+	 */
+	private BufferedImage wrap(int[] pixels, DirectColorModel model) {
+		DataBufferInt buffer = new DataBufferInt(pixels, tileWidth * tileHeight);
+		WritableRaster raster = Raster.createPackedRaster(buffer, tileWidth, tileHeight, tileWidth, model.getMasks(), null);
+
+		return new BufferedImage(model, raster, model.isAlphaPremultiplied(), null);
 	}
 }
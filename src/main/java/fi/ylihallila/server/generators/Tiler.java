@@ -1,33 +1,177 @@
 package fi.ylihallila.server.generators;
 
+import fi.ylihallila.server.models.Slide;
+import fi.ylihallila.server.models.TilingQueueEntry;
+import fi.ylihallila.server.models.TilingQueueEntry.State;
+import fi.ylihallila.server.util.Config;
 import fi.ylihallila.server.util.Constants;
+import fi.ylihallila.server.util.Database;
+import fi.ylihallila.server.util.NamedThreadFactory;
+import org.apache.commons.compress.utils.FileNameUtils;
+import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.persistence.LockModeType;
+
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.*;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * Searches the slides directory for slides that are pending upload and submits
  * them to the TileGenerator, which tiles & saves the tiles using
  * the Storage Provider defined in the server configuration.
+ * <p>
+ * Up to <code>tiler.scheduler.concurrent-slides</code> slides are tiled at the same time. All of them share
+ * one {@link TilePipeline}, so the threads and memory used for tiling stay the same no matter how many slides
+ * are being tiled, and tiles of the slides are processed in turns. When a slot frees up, the next slide is
+ * picked by:
+ * <ol>
+ *     <li>priority; a slide queued for tiling by a user is tiled before new uploads.</li>
+ *     <li>the owner with the fewest slides being tiled, and then the owner who least recently had a slide started,
+ *     so that a single organization uploading many slides doesn't hold up others.</li>
+ *     <li>the order the slides were queued in.</li>
+ * </ol>
+ * The queue is persisted as {@link TilingQueueEntry} rows, so slides which were queued or being tiled when
+ * the server stopped are queued again on startup. A slide which fails to tile is retried up to
+ * <code>tiler.scheduler.max-attempts</code> times before it is marked as failed.
+ * <p>
+ * Tiler workers, started with <code>--tiler-worker</code> on machines which share the database and directories of
+ * the server, tile slides from the same queue. A node leases a slide before it starts tiling it and renews the lease
+ * every <code>tiler.lease.heartbeat</code>; a slide whose lease is held by another node is skipped, and a slide whose
+ * lease expired, because its node stopped, is tiled again by the next node with a free slot. Workers only tile leased
+ * slides; see {@link #worker()}.
  */
 public class Tiler {
 
-    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+    public enum Priority {
+
+        /**
+         * Background work, such as re-tiling existing slides.
+         */
+        LOW,
+
+        /**
+         * Newly uploaded slides.
+         */
+        NORMAL,
+
+        /**
+         * Slides queued for tiling by a user.
+         */
+        HIGH
+    }
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    private final int concurrentSlides = Math.max(1, Config.Config.getInt("tiler.scheduler.concurrent-slides"));
+    private final int maxAttempts = Math.max(1, Config.Config.getInt("tiler.scheduler.max-attempts"));
+    private final ExecutorService executor = Executors.newFixedThreadPool(concurrentSlides, new NamedThreadFactory("tiler"));
+
+    /**
+     * Name of this node in the leases of the slides it tiles; see {@link TilingQueueEntry#getLeaseOwner()}.
+     */
+    private final String node;
+    private final long leaseDuration = Config.Config.getDuration("tiler.lease.duration").toMillis();
+    private final ScheduledExecutorService leases = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("tiler-lease"));
+
+    /**
+     * True if slides are tiled in {@link TilerProcess} worker JVMs instead of this one.
+     */
+    private final boolean isolated = Config.Config.getBoolean("tiler.process.isolated");
+    private final int recycleAfter = Math.max(1, Config.Config.getInt("tiler.process.recycle-after"));
+
+    /**
+     * Pipeline of the slides tiled in this JVM or null if they are tiled in worker processes, which have their own.
+     */
+    private final TilePipeline pipeline = isolated ? null : createPipeline();
+
+    /**
+     * Worker processes waiting for a slide.
+     */
+    private final Queue<TilerProcess> processes = new ConcurrentLinkedQueue<>();
+    private int processCount = 0;
+
+    /**
+     * Slides waiting to be tiled. Guarded by <code>this</code>, as are the fields below.
+     */
+    private final List<Request> queue = new ArrayList<>();
+
+    /**
+     * Slides which are queued or being tiled, for constant time duplicate checks.
+     */
+    private final Set<File> queued = new HashSet<>();
+    private final Set<File> running = new HashSet<>();
+
+    /**
+     * Number of slides being tiled per owner.
+     */
+    private final Map<String, Integer> runningPerOwner = new HashMap<>();
+
+    /**
+     * When a slide of each owner was last started, see {@link #sequence}.
+     */
+    private final Map<String, Long> lastStarted = new HashMap<>();
+
+    /**
+     * Status of the slides being tiled, by slide id; see {@link TileGenerator#getStatus()}.
+     */
+    private final Map<String, Supplier<Map<String, Object>>> statuses = new HashMap<>();
+
+    private long sequence = 0;
+
+    /**
+     * Moving average of how long tiling a slide takes in milliseconds, or 0 before any slide has been tiled.
+     */
+    private double averageDuration = 0;
+
     public Tiler() {
-        checkForPendingSlides();
+        this(false);
+    }
+
+    private Tiler(boolean worker) {
+        this.node = getNodeName(worker);
+
+        if (!worker) {
+            resumePendingSlides();
+        }
+
+        long heartbeat = Config.Config.getDuration("tiler.lease.heartbeat").toMillis();
+        leases.scheduleWithFixedDelay(this::heartbeat, worker ? 0 : heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+
+        logger.info("Tiler {} started; tiling up to {} slides at a time", node, concurrentSlides);
+    }
+
+    /**
+     * Creates a tiler which only tiles slides it leases from the tiling queue of the server it shares its
+     * database with. Slides are never added to its queue directly.
+     */
+    public static Tiler worker() {
+        return new Tiler(true);
     }
 
     /**
-     * Add provided slide to tile generation queue. Does not check if the slide is already queued.
+     * Add provided slide to tile generation queue with normal priority. Does nothing if the slide is already queued.
      * @param path to slide
      */
     public void addSlideToTilerQueue(Path path) {
+        addSlideToTilerQueue(path, Priority.NORMAL, null, TilingOptions.defaults());
+    }
+
+    /**
+     * Add provided slide to tile generation queue. Does nothing if the slide is already queued.
+     * @param path to slide
+     * @param priority priority of the slide.
+     * @param owner id of the organization or user who owns the slide, used to share the tiler fairly; may be null.
+     * @param options encoder, tile size and layout to tile the slide with.
+     */
+    public void addSlideToTilerQueue(Path path, Priority priority, String owner, TilingOptions options) {
         File file = path.toFile();
 
         if (!(file.exists())) {
@@ -40,46 +184,881 @@ public class Tiler {
             return;
         }
 
-        executor.execute(new TileGenerator(file));
+        if (isAlreadyQueued(path)) {
+            logger.debug("Tried to add slide to tiler queue, but it was already queued.");
+            return;
+        }
+
+        String id = getSlideId(file);
+
+        if (!saveEntry(id, file, priority, owner, options)) {
+            logger.debug("Tried to add slide to tiler queue, but it is being tiled by another node.");
+            return;
+        }
+
+        enqueue(new Request(id, file, priority, owner == null ? "" : owner, options));
+    }
+
+    private void enqueue(Request request) {
+        synchronized (this) {
+            if (!queued.add(request.file)) {
+                return;
+            }
+
+            request.sequence = sequence++;
+            queue.add(request);
+
+            logger.debug("Queued {} for tiling with {} priority; {} slides queued", request.id, request.priority, queue.size());
+        }
+
+        dispatch();
     }
 
     /**
-     * Tries to check whether this file is already queued for tiling. This does not work if the slide is already
-     * being tiled, thus is being executed and isn't in the queue.
+     * Checks whether this file is already queued or being tiled.
      * @param path to slide being tiled.
      * @return true if queued already.
      */
-    public boolean isAlreadyQueued(Path path) {
+    public synchronized boolean isAlreadyQueued(Path path) {
         File file = path.toFile();
 
-        var isQueued = executor.getQueue()
-            .stream()
-            .anyMatch(runnable -> {
-                if (runnable instanceof TileGenerator generator) {
-                    return generator.getSlideFile().equals(file);
+        return queued.contains(file);
+    }
+
+    /**
+     * @return the pipeline shared by all slides being tiled or null if they are tiled in worker processes.
+     */
+    public TilePipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Returns the tiling status of a slide: its state in the tiling queue and, while it is being tiled,
+     * the progress of each level with throughput and estimated time remaining.
+     * @param id of slide
+     * @return the status or null if the slide has never been queued for tiling.
+     */
+    public Map<String, Object> getStatus(String id) {
+        TilingQueueEntry entry = findEntry(id);
+
+        if (entry == null) {
+            return null;
+        }
+
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("id", entry.getId());
+        status.put("state", entry.getState());
+        status.put("priority", entry.getPriority());
+        status.put("encoder", entry.getEncoder());
+        status.put("tileSize", entry.getTileSize());
+        status.put("overlap", entry.getOverlap());
+        status.put("layout", entry.getLayout());
+        status.put("attempts", entry.getAttempts());
+        status.put("levelsDone", entry.getLevelsDone());
+        status.put("node", entry.isLeased() ? entry.getLeaseOwner() : null);
+        status.put("lastError", entry.getLastError());
+        status.put("createdAt", entry.getCreatedAt());
+        status.put("updatedAt", entry.getUpdatedAt());
+
+        synchronized (this) {
+            List<Request> order = getQueueOrder();
+
+            for (int i = 0; i < order.size(); i++) {
+                if (order.get(i).id.equals(id)) {
+                    status.put("position", i + 1);
+                }
+            }
+
+            Map<String, Object> running = getRunningStatus(id);
+
+            if (running != null) {
+                status.putAll(running);
+            }
+        }
+
+        return status;
+    }
+
+    /**
+     * Returns the state of the whole tiler: the slides being tiled with their progress, the slides waiting
+     * in the order they will be started, an estimate of how long tiling all of them takes and the load of
+     * each stage of the pipeline.
+     */
+    public synchronized Map<String, Object> getQueue() {
+        List<Map<String, Object>> runningSlides = new ArrayList<>();
+        long runningRemaining = 0;
+
+        for (String id : statuses.keySet()) {
+            Map<String, Object> slide = new LinkedHashMap<>();
+            slide.put("id", id);
+
+            Map<String, Object> running = getRunningStatus(id);
+
+            if (running != null) {
+                slide.putAll(running);
+
+                if (running.get("progress") instanceof Map<?, ?> progress && progress.get("eta") instanceof Number eta) {
+                    runningRemaining = Math.max(runningRemaining, eta.longValue());
+                }
+            }
+
+            runningSlides.add(slide);
+        }
+
+        List<Map<String, Object>> queuedSlides = new ArrayList<>();
+
+        for (Request request : getQueueOrder()) {
+            Map<String, Object> slide = new LinkedHashMap<>();
+            slide.put("id", request.id);
+            slide.put("priority", request.priority);
+            slide.put("owner", request.owner);
+
+            queuedSlides.add(slide);
+        }
+
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("node", node);
+        status.put("concurrentSlides", concurrentSlides);
+        status.put("running", runningSlides);
+        status.put("queued", queuedSlides);
+        status.put("eta", getEstimatedTimeRemaining(runningRemaining));
+
+        if (isolated) {
+            status.put("processesStarted", processCount);
+            return status;
+        }
+
+        List<Map<String, Object>> stages = new ArrayList<>();
+
+        for (TilePipeline.Stage stage : pipeline.getStages()) {
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("name", stage.getName());
+            data.put("threads", stage.getThreads());
+            data.put("queueDepth", stage.getQueueDepth());
+            data.put("queueCapacity", stage.getQueueCapacity());
+            data.put("processed", stage.getProcessed());
+            data.put("throughput", Math.round(stage.getThroughput() * 10) / 10.0);
+            data.put("utilization", Math.round(stage.getUtilization() * 100) / 100.0);
+
+            stages.add(data);
+        }
+
+        Map<String, Object> pipelineStatus = new LinkedHashMap<>();
+        pipelineStatus.put("inFlight", pipeline.getInFlight());
+        pipelineStatus.put("maxInFlight", pipeline.getMaxInFlight());
+        pipelineStatus.put("bufferMemory", pipeline.getBufferMemory());
+        pipelineStatus.put("stages", stages);
+
+        status.put("pipeline", pipelineStatus);
+
+        return status;
+    }
+
+    /**
+     * Estimates the seconds until every queued slide has been tiled, assuming queued slides take
+     * as long as the slides tiled so far.
+     * @param runningRemaining seconds until the slides being tiled are done.
+     * @return the estimate or -1 if it is unknown.
+     */
+    private long getEstimatedTimeRemaining(long runningRemaining) {
+        if (queue.isEmpty()) {
+            return runningRemaining;
+        }
+
+        if (averageDuration == 0 || runningRemaining < 0) {
+            return -1;
+        }
+
+        double batches = Math.ceil((double) queue.size() / concurrentSlides);
+
+        return runningRemaining + Math.round(batches * averageDuration / 1000);
+    }
+
+    /**
+     * @return the queued slides in the order they would be started if nothing else was queued.
+     */
+    private List<Request> getQueueOrder() {
+        List<Request> order = new ArrayList<>(queue);
+        order.sort(this::compare);
+
+        return order;
+    }
+
+    /**
+     * Starts the next slides in the queue while there are free slots. The slot of a slide is taken before it is
+     * leased, which is a database transaction, so that the monitor isn't held while leasing.
+     */
+    private void dispatch() {
+        while (true) {
+            Request request;
+
+            synchronized (this) {
+                if (running.size() >= concurrentSlides || queue.isEmpty()) {
+                    return;
+                }
+
+                request = queue.stream().min(this::compare).get();
+
+                queue.remove(request);
+                running.add(request.file);
+                runningPerOwner.merge(request.owner, 1, Integer::sum);
+            }
+
+            if (!lease(request)) {
+                logger.debug("Skipping {}; it was leased by another node or is no longer queued", request.id);
+
+                synchronized (this) {
+                    running.remove(request.file);
+                    queued.remove(request.file);
+                    runningPerOwner.computeIfPresent(request.owner, (owner, count) -> count > 1 ? count - 1 : null);
+                }
+
+                continue;
+            }
+
+            synchronized (this) {
+                lastStarted.put(request.owner, sequence++);
+                statuses.put(request.id, () -> null);
+            }
+
+            TileGenerator.ProgressListener listener = (level, availableLevel) -> {
+                updateEntry(request.id, entry -> {
+                    if (node.equals(entry.getLeaseOwner())) {
+                        entry.setState(State.LEVEL_DONE);
+                        entry.setLevelsDone(entry.getLevelsDone() + 1);
+                    }
+                });
+
+                updateSlide(request.id, slide -> slide.setAvailableLevel(availableLevel));
+            };
+
+            long started = System.currentTimeMillis();
+
+            executor.execute(() -> {
+                boolean completed = false;
+
+                try {
+                    completed = isolated ? tileInProcess(request, listener) : tile(request, listener);
+                } finally {
+                    finished(request, completed, System.currentTimeMillis() - started);
                 }
+            });
+        }
+    }
+
+    /**
+     * Tiles a slide in this JVM.
+     * @return true if the slide was tiled and committed successfully.
+     */
+    private boolean tile(Request request, TileGenerator.ProgressListener listener) {
+        TileGenerator generator = new TileGenerator(request.file, pipeline, request.options, listener);
+
+        synchronized (this) {
+            statuses.put(request.id, generator::getStatus);
+        }
 
+        generator.run();
+        request.error = generator.getError();
+
+        return generator.isCompleted();
+    }
+
+    /**
+     * Tiles a slide in an idle worker process, or a new one if there are none. Workers are replaced once they
+     * have tiled <code>tiler.process.recycle-after</code> slides, or if they died.
+     * @return true if the slide was tiled and committed successfully.
+     */
+    private boolean tileInProcess(Request request, TileGenerator.ProgressListener listener) {
+        TilerProcess process = processes.poll();
+
+        if (process == null) {
+            try {
+                synchronized (this) {
+                    process = TilerProcess.start("tiler-" + (++processCount));
+                }
+            } catch (IOException e) {
+                logger.error("Error while starting tiler process", e);
+                request.error = "Error while starting tiler process";
                 return false;
+            }
+        }
+
+        TilerProcess worker = process;
+
+        synchronized (this) {
+            statuses.put(request.id, worker::getStatus);
+        }
+
+        boolean completed = worker.tile(request.id, request.file, request.options, listener);
+        request.error = worker.getError();
+
+        if (worker.isAlive() && worker.getSlides() < recycleAfter) {
+            processes.add(worker);
+        } else {
+            logger.info("Recycling tiler process {} after {} slides", worker.getName(), worker.getSlides());
+            worker.close();
+        }
+
+        return completed;
+    }
+
+    private void finished(Request request, boolean completed, long duration) {
+        boolean retry = false;
+
+        if (completed) {
+            updateEntry(request.id, entry -> {
+                entry.setState(State.DONE);
+                entry.setLastError(null);
+                entry.releaseLease();
+            });
+
+            updateSlide(request.id, slide -> {
+                slide.setTiled(true);
+                slide.setAvailableLevel(0);
+            });
+        } else {
+            TilingQueueEntry entry = updateEntry(request.id, e -> {
+                if (!node.equals(e.getLeaseOwner())) {
+                    return;
+                }
+
+                boolean canRetry = e.getAttempts() < maxAttempts && request.file.exists();
+                e.setState(canRetry ? State.QUEUED : State.FAILED);
+                e.setLastError(request.error != null ? request.error : "Tiling failed");
+                e.releaseLease();
             });
 
-        return isQueued;
+            retry = entry != null && entry.getState() == State.QUEUED;
+
+            if (retry) {
+                logger.warn("Tiling {} failed: {}; retrying ({}/{} attempts)", request.id, entry.getLastError(), entry.getAttempts(), maxAttempts);
+            } else if (entry != null && entry.isLeased()) {
+                logger.error("Tiling {} failed; it was leased by {} in the meantime", request.id, entry.getLeaseOwner());
+            } else {
+                logger.error("Tiling {} failed; giving up", request.id);
+            }
+        }
+
+        synchronized (this) {
+            running.remove(request.file);
+            queued.remove(request.file);
+            runningPerOwner.computeIfPresent(request.owner, (owner, count) -> count > 1 ? count - 1 : null);
+            statuses.remove(request.id);
+
+            if (completed) {
+                averageDuration = averageDuration == 0 ? duration : 0.8 * averageDuration + 0.2 * duration;
+            }
+        }
+
+        if (retry) {
+            enqueue(request);
+        } else {
+            dispatch();
+        }
     }
 
     /**
-     * Checks for any slides that are pending to be tiled and prints a warning.
+     * Orders requests by which should be started first, see {@link Tiler}.
      */
-    private void checkForPendingSlides() {
+    private int compare(Request a, Request b) {
+        if (a.priority != b.priority) {
+            return b.priority.compareTo(a.priority);
+        }
+
+        if (!a.owner.equals(b.owner)) {
+            int running = Integer.compare(runningPerOwner.getOrDefault(a.owner, 0), runningPerOwner.getOrDefault(b.owner, 0));
+
+            if (running != 0) {
+                return running;
+            }
+
+            return Long.compare(lastStarted.getOrDefault(a.owner, -1L), lastStarted.getOrDefault(b.owner, -1L));
+        }
+
+        return Long.compare(a.sequence, b.sequence);
+    }
+
+    /**
+     * Queues the slides which were queued or being tiled when the server stopped, followed by any
+     * other pending slides.
+     */
+    private void resumePendingSlides() {
+        List<TilingQueueEntry> entries = new ArrayList<>();
+        Session session = Database.openSession();
+
+        try {
+            entries.addAll(session.createQuery("from TilingQueueEntry order by createdAt", TilingQueueEntry.class).list());
+        } catch (Exception e) {
+            logger.error("Error while loading tiling queue", e);
+        } finally {
+            session.close();
+        }
+
+        Set<String> known = new HashSet<>();
+        int resumed = 0;
+
+        for (TilingQueueEntry entry : entries) {
+            known.add(entry.getId());
+
+            if (!entry.getState().isUnfinished()) {
+                continue;
+            }
+
+            if (entry.isLeased() && !node.equals(entry.getLeaseOwner())) {
+                // Being tiled by a worker; queued again by heartbeat() if its lease expires
+                continue;
+            }
+
+            File file = new File(entry.getPath());
+
+            if (!file.exists()) {
+                logger.warn("Slide {} was queued for tiling, but its file is missing", entry.getId());
+                updateEntry(entry.getId(), e -> e.setState(State.FAILED));
+                continue;
+            }
+
+            updateEntry(entry.getId(), e -> {
+                e.setState(State.QUEUED);
+                e.releaseLease();
+            });
+
+            enqueue(new Request(entry.getId(), file, entry.getPriority(), entry.getOwnerId() == null ? "" : entry.getOwnerId(),
+                new TilingOptions(entry.getEncoder(), entry.getTileSize(), entry.getOverlap(), entry.getLayout())));
+            resumed++;
+        }
+
+        logger.info("Resumed {} slides from the tiling queue", resumed);
+
+        checkForPendingSlides(known);
+    }
+
+    /**
+     * Leases a slide to this node unless another node holds its lease or it is no longer waiting to be tiled.
+     * @return true if this node now holds the lease.
+     */
+    private boolean lease(Request request) {
+        long now = System.currentTimeMillis();
+
+        TilingQueueEntry entry = updateEntry(request.id, e -> {
+            if (!e.getState().isUnfinished() || (e.isLeased() && !node.equals(e.getLeaseOwner()))) {
+                return;
+            }
+
+            e.setState(State.RUNNING);
+            e.setAttempts(e.getAttempts() + 1);
+            e.setLevelsDone(0);
+            e.setLease(node, now + leaseDuration);
+        });
+
+        return entry != null && node.equals(entry.getLeaseOwner()) && entry.getState() == State.RUNNING;
+    }
+
+    private void heartbeat() {
+        try {
+            renewLeases();
+            leaseQueuedSlides();
+        } catch (Exception e) {
+            logger.error("Error while renewing tiling leases", e);
+        }
+    }
+
+    /**
+     * Extends the leases of the slides this node is tiling.
+     */
+    private void renewLeases() {
+        Set<String> ids;
+
+        synchronized (this) {
+            ids = new HashSet<>(statuses.keySet());
+        }
+
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        Session session = Database.openSession();
+
+        try {
+            session.beginTransaction();
+
+            int renewed = session.createQuery("update TilingQueueEntry set leaseExpiresAt = :expiresAt where leaseOwner = :node and id in (:ids)")
+                .setParameter("expiresAt", System.currentTimeMillis() + leaseDuration)
+                .setParameter("node", node)
+                .setParameterList("ids", ids)
+                .executeUpdate();
+
+            session.getTransaction().commit();
+
+            if (renewed < ids.size()) {
+                logger.warn("Lost the lease of {} of the {} slides being tiled", ids.size() - renewed, ids.size());
+            }
+        } catch (Exception e) {
+            logger.error("Error while renewing tiling leases", e);
+
+            if (session.getTransaction() != null) {
+                session.getTransaction().rollback();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Queues slides which are waiting in the shared tiling queue, or whose lease has expired, while this node has
+     * free slots. Slides whose file this node can't read are left to other nodes.
+     */
+    private void leaseQueuedSlides() {
+        int free;
+
+        synchronized (this) {
+            free = concurrentSlides - running.size() - queue.size();
+        }
+
+        if (free <= 0) {
+            return;
+        }
+
+        List<TilingQueueEntry> entries = new ArrayList<>();
+        Session session = Database.openSession();
+
+        try {
+            entries.addAll(session.createQuery("from TilingQueueEntry where state in (:states)", TilingQueueEntry.class)
+                .setParameterList("states", List.of(State.QUEUED, State.RUNNING, State.LEVEL_DONE))
+                .list());
+        } finally {
+            session.close();
+        }
+
+        entries.removeIf(TilingQueueEntry::isLeased);
+        entries.sort(Comparator.comparing(TilingQueueEntry::getPriority).reversed().thenComparing(TilingQueueEntry::getCreatedAt));
+
+        for (TilingQueueEntry entry : entries) {
+            if (free == 0) {
+                break;
+            }
+
+            File file = new File(entry.getPath());
+
+            if (!file.canRead() || isAlreadyQueued(file.toPath())) {
+                continue;
+            }
+
+            if (entry.getState() != State.QUEUED && entry.getAttempts() >= maxAttempts) {
+                logger.error("Lease of {} expired after {} attempts; giving up", entry.getId(), entry.getAttempts());
+                updateEntry(entry.getId(), e -> {
+                    if (!e.isLeased() && e.getState().isUnfinished()) {
+                        e.setState(State.FAILED);
+                        e.releaseLease();
+                    }
+                });
+                continue;
+            }
+
+            if (entry.getState() != State.QUEUED) {
+                logger.warn("Lease of {} held by {} expired; tiling it again", entry.getId(), entry.getLeaseOwner());
+            }
+
+            enqueue(new Request(entry.getId(), file, entry.getPriority(), entry.getOwnerId() == null ? "" : entry.getOwnerId(),
+                new TilingOptions(entry.getEncoder(), entry.getTileSize(), entry.getOverlap(), entry.getLayout())));
+            free--;
+        }
+    }
+
+    /**
+     * Returns the slides leased by this node to the queue, so that other nodes can tile them right away
+     * instead of waiting for the leases to expire. Called when a tiler worker is stopped.
+     */
+    public void releaseLeases() {
+        leases.shutdownNow();
+
+        Session session = Database.openSession();
+
+        try {
+            session.beginTransaction();
+
+            int released = session.createQuery("update TilingQueueEntry set state = :state, leaseOwner = null, leaseExpiresAt = null where leaseOwner = :node")
+                .setParameter("state", State.QUEUED)
+                .setParameter("node", node)
+                .executeUpdate();
+
+            session.getTransaction().commit();
+
+            logger.info("Released the leases of {} slides", released);
+        } catch (Exception e) {
+            logger.error("Error while releasing tiling leases", e);
+
+            if (session.getTransaction() != null) {
+                session.getTransaction().rollback();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Queues slides which are pending to be tiled but aren't in the tiling queue, such as slides uploaded
+     * before the queue was persisted.
+     */
+    private void checkForPendingSlides(Set<String> known) {
         try (var paths = Files.list(Path.of(Constants.PENDING_DIRECTORY).toAbsolutePath())) {
             logger.info("Checking for slides pending tiling ...");
 
             var files = paths.filter(path -> path.toString().endsWith(".pending"))
+                        .filter(path -> !known.contains(getSlideId(path.toFile())))
                         .toList();
 
             if (files.size() > 0) {
-                logger.info("Found " + files.size() + " slides, which are pending to be tiled.");
+                logger.info("Found " + files.size() + " slides, which are pending to be tiled; adding them to the queue.");
+            }
+
+            for (Path path : files) {
+                addSlideToTilerQueue(path, Priority.NORMAL, getSlideOwner(getSlideId(path.toFile())), TilingOptions.defaults());
             }
         } catch (IOException e) {
             logger.error("Error while checking for pending slides pending tiling", e);
         }
     }
+
+    /**
+     * Creates or re-queues the tiling queue entry of a slide. An entry leased by a node is left as is, as the
+     * node may be tiling the slide; the entry is updated conditionally, so that a lease taken meanwhile by
+     * another node is never overwritten.
+     * @return false if the slide is leased by a node and can't be queued.
+     */
+    private boolean saveEntry(String id, File file, Priority priority, String owner, TilingOptions options) {
+        Session session = Database.openSession();
+
+        try {
+            session.beginTransaction();
+
+            long now = System.currentTimeMillis();
+
+            int updated = session.createQuery("update TilingQueueEntry set path = :path, priority = :priority, encoder = :encoder, " +
+                    "tileSize = :tileSize, overlap = :overlap, layout = :layout, state = :state, attempts = 0, " +
+                    "leaseOwner = null, leaseExpiresAt = null, updatedAt = :now " +
+                    "where id = :id and (leaseOwner is null or leaseExpiresAt is null or leaseExpiresAt <= :now)")
+                .setParameter("path", file.getPath())
+                .setParameter("priority", priority)
+                .setParameter("encoder", options.getEncoder())
+                .setParameter("tileSize", options.getTileSize())
+                .setParameter("overlap", options.getOverlap())
+                .setParameter("layout", options.getLayout())
+                .setParameter("state", State.QUEUED)
+                .setParameter("now", now)
+                .setParameter("id", id)
+                .executeUpdate();
+
+            boolean saved = updated > 0;
+
+            if (!saved && session.find(TilingQueueEntry.class, id) == null) {
+                session.save(new TilingQueueEntry(
+                    id, file.getPath(), owner, priority,
+                    options.getEncoder(), options.getTileSize(), options.getOverlap(), options.getLayout()
+                ));
+
+                saved = true;
+            }
+
+            session.getTransaction().commit();
+
+            return saved;
+        } catch (Exception e) {
+            logger.error("Error while saving tiling queue entry", e);
+
+            if (session.getTransaction() != null) {
+                session.getTransaction().rollback();
+            }
+        } finally {
+            session.close();
+        }
+
+        // Queued anyway, as leasing the slide checks the entry again
+        return true;
+    }
+
+    /**
+     * @return the tiling queue entry of a slide or null if it doesn't exist.
+     */
+    private TilingQueueEntry findEntry(String id) {
+        Session session = Database.openSession();
+
+        try {
+            return session.find(TilingQueueEntry.class, id);
+        } catch (Exception e) {
+            logger.error("Error while loading tiling queue entry", e);
+        } finally {
+            session.close();
+        }
+
+        return null;
+    }
+
+    /**
+     * Updates the tiling queue entry of a slide.
+     * @return the updated entry or null if it doesn't exist or couldn't be updated.
+     */
+    private TilingQueueEntry updateEntry(String id, Consumer<TilingQueueEntry> update) {
+        Session session = Database.openSession();
+
+        try {
+            session.beginTransaction();
+
+            // Locked, as other nodes may be updating the entry at the same time
+            TilingQueueEntry entry = session.find(TilingQueueEntry.class, id, LockModeType.PESSIMISTIC_WRITE);
+
+            if (entry != null) {
+                update.accept(entry);
+                session.update(entry);
+            }
+
+            session.getTransaction().commit();
+
+            return entry;
+        } catch (Exception e) {
+            logger.error("Error while updating tiling queue entry", e);
+
+            if (session.getTransaction() != null) {
+                session.getTransaction().rollback();
+            }
+        } finally {
+            session.close();
+        }
+
+        return null;
+    }
+
+    /**
+     * @return id of the owner of the slide or null if the slide doesn't exist.
+     */
+    private String getSlideOwner(String id) {
+        Session session = Database.openSession();
+
+        try {
+            Slide slide = session.find(Slide.class, id);
+
+            return slide == null || slide.getOwner() == null ? null : slide.getOwner().getId();
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * @return <code>tiler.lease.node</code> if set and otherwise "server" or "worker-[pid]@[host]".
+     */
+    private static String getNodeName(boolean worker) {
+        String name = Config.Config.getString("tiler.lease.node");
+
+        if (!name.isBlank()) {
+            return name;
+        }
+
+        return worker ? "worker-" + ManagementFactory.getRuntimeMXBean().getName() : "server";
+    }
+
+    /**
+     * Pending slides are named after the id of the slide.
+     */
+    private static String getSlideId(File file) {
+        return FileNameUtils.getBaseName(file.getName());
+    }
+
+    /**
+     * @return width and height of the largest tile the tiler supports, including overlap.
+     */
+    public int getMaxTileSize() {
+        return Config.Config.getInt("tiler.tiles.max-size");
+    }
+
+    /**
+     * Creates the pipeline configured in <code>tiler.pipeline</code> and <code>tiler.memory</code>.
+     */
+    static TilePipeline createPipeline() {
+        return new TilePipeline(
+            Config.Config.getInt("tiler.tiles.max-size"), Config.Config.getInt("tiler.tiles.max-size"),
+            getThreadCount("read"),
+            getThreadCount("composite"),
+            getThreadCount("encode"),
+            getThreadCount("archive"),
+            Math.max(1, Config.Config.getInt("tiler.pipeline.upload-threads")),
+            Config.Config.getInt("tiler.pipeline.queue-size"),
+            Math.max(1, Config.Config.getInt("tiler.pipeline.upload-queue-size")),
+            Config.Config.getInt("tiler.memory.max-in-flight"),
+            Config.Config.getBytes("tiler.memory.buffers")
+        );
+    }
+
+    /**
+     * @return status of a slide being tiled or null if it isn't being tiled or tiling hasn't started.
+     */
+    private synchronized Map<String, Object> getRunningStatus(String id) {
+        Supplier<Map<String, Object>> status = statuses.get(id);
+
+        return status == null ? null : status.get();
+    }
+
+    /**
+     * Updates a slide, if it exists.
+     */
+    private void updateSlide(String id, Consumer<Slide> update) {
+        Session session = Database.openSession();
+
+        try {
+            session.beginTransaction();
+
+            Slide slide = session.find(Slide.class, id);
+
+            if (slide == null) return;
+
+            update.accept(slide);
+
+            session.save(slide);
+            session.getTransaction().commit();
+        } catch (Exception e) {
+            logger.error("Error while updating slide", e);
+
+            if (session.getTransaction() != null) {
+                session.getTransaction().rollback();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Number of threads of a pipeline stage; <code>tiler.pipeline.[stage]-threads</code> or half
+     * of the available processors if set to 0.
+     */
+    private static int getThreadCount(String stage) {
+        int threads = Config.Config.getInt("tiler.pipeline." + stage + "-threads");
+
+        if (threads > 0) {
+            return threads;
+        }
+
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    private static class Request {
+
+        private final String id;
+        private final File file;
+        private final Priority priority;
+        private final String owner;
+        private final TilingOptions options;
+
+        private long sequence;
+
+        /**
+         * Why the last attempt to tile the slide failed.
+         */
+        private String error;
+
+        private Request(String id, File file, Priority priority, String owner, TilingOptions options) {
+            this.id = id;
+            this.file = file;
+            this.priority = priority;
+            this.owner = owner;
+            this.options = options;
+        }
+    }
 }
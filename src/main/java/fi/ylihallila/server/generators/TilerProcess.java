@@ -0,0 +1,332 @@
+package fi.ylihallila.server.generators;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.ToNumberPolicy;
+import fi.ylihallila.server.Main;
+import fi.ylihallila.server.util.Config;
+import fi.ylihallila.server.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * A tiler worker JVM, which tiles slides one at a time on behalf of the server so that native memory leaked
+ * or a crash while tiling only takes down the worker and the slide it was tiling.
+ * <p>
+ * The server sends commands to the worker's standard input and the worker sends events back on its standard
+ * output, one JSON message per line:
+ * <ul>
+ *     <li><b>tile</b> (server) -- tile the slide at <code>path</code> with <code>options</code>.</li>
+ *     <li><b>level</b> (worker) -- <code>level</code> of the slide was committed to storage; levels up from
+ *     <code>available</code> can be viewed.</li>
+ *     <li><b>status</b> (worker) -- periodic <code>status</code> of the slide, see {@link TileGenerator#getStatus()}.</li>
+ *     <li><b>done</b> (worker) -- the slide was tiled; <code>completed</code> is false if tiling failed, with
+ *     the reason in <code>error</code>.</li>
+ * </ul>
+ * The worker logs to its standard error, which is inherited from the server. It exits once its standard input
+ * is closed, cancelling the slide it is tiling, if any.
+ */
+public class TilerProcess implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TilerProcess.class);
+
+    private static final Gson gson = new GsonBuilder()
+        .setObjectToNumberStrategy(ToNumberPolicy.LONG_OR_DOUBLE)
+        .create();
+
+    private final String name;
+    private final Process process;
+    private final BufferedWriter commands;
+    private final BufferedReader events;
+
+    /**
+     * Number of slides this worker has been given.
+     */
+    private int slides = 0;
+
+    private volatile Map<String, Object> status;
+    private String error;
+
+    private TilerProcess(String name, Process process) {
+        this.name = name;
+        this.process = process;
+        this.commands = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        this.events = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Starts a new worker JVM with the classpath of this server and <code>tiler.process.jvm-options</code>.
+     *
+     * @param name name of the worker, also used as the name of its log file.
+     */
+    public static TilerProcess start(String name) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(Config.Config.getStringList("tiler.process.jvm-options"));
+        command.add("-Dlog.process=" + name);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+        command.add("--tiler-process");
+
+        Process process = new ProcessBuilder(command)
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+
+        logger.info("Started tiler process {} (pid {})", name, process.pid());
+
+        return new TilerProcess(name, process);
+    }
+
+    /**
+     * Tiles a slide in this worker and waits until it is done.
+     *
+     * @param listener notified as levels are committed; may be null.
+     * @return true if the slide was tiled and committed successfully; false if tiling failed or the worker died.
+     */
+    public boolean tile(String id, File file, TilingOptions options, TileGenerator.ProgressListener listener) {
+        slides++;
+        status = null;
+        error = null;
+
+        try {
+            commands.write(gson.toJson(Message.tile(id, file, options)));
+            commands.newLine();
+            commands.flush();
+
+            String line;
+
+            while ((line = events.readLine()) != null) {
+                if (!line.startsWith("{")) {
+                    // Printed to the standard output by native code
+                    logger.info("[{}] {}", name, line);
+                    continue;
+                }
+
+                Message event = gson.fromJson(line, Message.class);
+
+                switch (event.type) {
+                    case "level" -> {
+                        if (listener != null) {
+                            listener.levelCommitted(event.level, event.available);
+                        }
+                    }
+                    case "status" -> status = event.status;
+                    case "done" -> {
+                        error = event.error;
+                        return Boolean.TRUE.equals(event.completed);
+                    }
+                    default -> logger.warn("Unknown event {} from tiler process {}", event.type, name);
+                }
+            }
+
+            process.waitFor(10, TimeUnit.SECONDS);
+            error = "Tiler process " + name + " exited";
+            logger.error("Tiler process {} exited while tiling {}{}", name, id,
+                process.isAlive() ? "" : " with exit code " + process.exitValue());
+        } catch (IOException | JsonParseException e) {
+            logger.error("Error while communicating with tiler process {}", name, e);
+            error = "Error while communicating with tiler process " + name;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return false;
+    }
+
+    /**
+     * @return status of the slide being tiled or null if it hasn't been reported yet.
+     */
+    public Map<String, Object> getStatus() {
+        return status;
+    }
+
+    /**
+     * @return why the last slide failed to tile or null if it didn't fail.
+     */
+    public String getError() {
+        return error;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of slides this worker has been given.
+     */
+    public int getSlides() {
+        return slides;
+    }
+
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    /**
+     * Asks the worker to exit and kills it if it doesn't.
+     */
+    @Override
+    public void close() {
+        try {
+            commands.close();
+
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                logger.warn("Tiler process {} did not exit; killing it", name);
+                process.destroyForcibly();
+            }
+        } catch (IOException e) {
+            process.destroyForcibly();
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs the worker side of the protocol until standard input is closed; the entry point of the worker JVM.
+     */
+    public static void serve() {
+        // The protocol owns the standard output; everything else printed, such as logs, goes to standard error
+        PrintStream out = System.out;
+        System.setOut(System.err);
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        TilePipeline pipeline = Tiler.createPipeline();
+
+        ExecutorService jobs = Executors.newSingleThreadExecutor(new NamedThreadFactory("tiler"));
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("tiler-status"));
+        long interval = Math.max(100, Config.Config.getDuration("tiler.process.status-interval").toMillis());
+
+        TileGenerator[] current = new TileGenerator[1];
+
+        try {
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                Message command = gson.fromJson(line, Message.class);
+
+                if (!"tile".equals(command.type)) {
+                    logger.warn("Unknown tiler process command {}", command.type);
+                    continue;
+                }
+
+                TileGenerator generator = new TileGenerator(
+                    new File(command.path), pipeline, command.options,
+                    (level, available) -> send(out, Message.level(command.id, level, available))
+                );
+
+                current[0] = generator;
+
+                jobs.execute(() -> {
+                    ScheduledFuture<?> reporting = reporter.scheduleAtFixedRate(() -> {
+                        Map<String, Object> status = generator.getStatus();
+
+                        if (status != null) {
+                            send(out, Message.status(command.id, status));
+                        }
+                    }, interval, interval, TimeUnit.MILLISECONDS);
+
+                    try {
+                        generator.run();
+                    } finally {
+                        reporting.cancel(false);
+                        send(out, Message.done(command.id, generator.isCompleted(), generator.getError()));
+                    }
+                });
+            }
+        } catch (IOException | JsonParseException e) {
+            logger.error("Error while reading tiler process commands", e);
+        }
+
+        // The server recycled this worker or stopped
+        if (current[0] != null) {
+            current[0].cancel();
+        }
+
+        jobs.shutdown();
+
+        try {
+            jobs.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        reporter.shutdownNow();
+        pipeline.shutdown();
+
+        System.exit(0);
+    }
+
+    private static void send(PrintStream out, Message message) {
+        String json = gson.toJson(message);
+
+        synchronized (out) {
+            out.println(json);
+            out.flush();
+        }
+    }
+
+    private static class Message {
+
+        private String type;
+        private String id;
+
+        private String path;
+        private TilingOptions options;
+
+        private Integer level;
+        private Integer available;
+        private Map<String, Object> status;
+        private Boolean completed;
+        private String error;
+
+        private static Message tile(String id, File file, TilingOptions options) {
+            Message message = new Message();
+            message.type = "tile";
+            message.id = id;
+            message.path = file.getAbsolutePath();
+            message.options = options;
+
+            return message;
+        }
+
+        private static Message level(String id, int level, int available) {
+            Message message = new Message();
+            message.type = "level";
+            message.id = id;
+            message.level = level;
+            message.available = available;
+
+            return message;
+        }
+
+        private static Message status(String id, Map<String, Object> status) {
+            Message message = new Message();
+            message.type = "status";
+            message.id = id;
+            message.status = status;
+
+            return message;
+        }
+
+        private static Message done(String id, boolean completed, String error) {
+            Message message = new Message();
+            message.type = "done";
+            message.id = id;
+            message.completed = completed;
+            message.error = error;
+
+            return message;
+        }
+    }
+}
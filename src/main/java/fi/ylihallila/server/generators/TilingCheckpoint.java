@@ -0,0 +1,246 @@
+package fi.ylihallila.server.generators;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiPredicate;
+
+/**
+ * Records the progress of tiling a slide on disk, so that tiling can continue where it stopped after
+ * the server is restarted. The checkpoint is an append-only log of fixed size records: a tile was written
+ * to the archive of its level, a tile was skipped as background, or a level was committed to storage.
+ * A record which was cut short by a crash is ignored, and its tile is simply generated again.
+ * <p>
+ * The archive of a level is what decides whether a tile was written: once the archive has been recovered,
+ * {@link #verify(int, int, int, BiPredicate)} forgets tiles which are no longer in it and marks the tiles in it
+ * as done. Tile records are therefore flushed only every {@link #FLUSH_MILLIS}, while level records are flushed
+ * immediately.
+ */
+public class TilingCheckpoint implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(TilingCheckpoint.class);
+
+	private static final int MAGIC = 0x4F4D434B; // OMCK
+	private static final int VERSION = 2;
+
+	private static final int HEADER_SIZE = 5 * 4;
+
+	private static final byte TILE_WRITTEN    = 1;
+	private static final byte TILE_SKIPPED    = 2;
+	private static final byte LEVEL_COMMITTED = 3;
+	private static final byte LEVEL_RESET     = 4;
+
+	private static final int RECORD_SIZE = 1 + 1 + 4 + 4;
+
+	/**
+	 * Interval between flushes of tile records.
+	 */
+	private static final long FLUSH_MILLIS = 1000;
+
+	private final File file;
+	private final DataOutputStream out;
+
+	private final Set<Integer> committedLevels = new HashSet<>();
+
+	/**
+	 * Tiles done per level; true if the tile was written, false if it was skipped.
+	 */
+	private final Map<Integer, Map<Long, Boolean>> tiles = new HashMap<>();
+
+	private long lastFlush = System.currentTimeMillis();
+
+	private TilingCheckpoint(File file, DataOutputStream out) {
+		this.file = file;
+		this.out = out;
+	}
+
+	/**
+	 * Opens the checkpoint of a slide, or creates a new one if it doesn't exist or was created
+	 * with a different layout, tile size or overlap.
+	 */
+	public static TilingCheckpoint open(File file, PyramidLayout layout) throws IOException {
+		Map<Integer, Map<Long, Boolean>> tiles = new HashMap<>();
+		Set<Integer> committedLevels = new HashSet<>();
+
+		boolean valid = false;
+		long length = 0;
+
+		if (file.exists()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				valid = in.readInt() == MAGIC && in.readInt() == VERSION && in.readInt() == layout.getType().ordinal()
+					&& in.readInt() == layout.getTileSize() && in.readInt() == layout.getOverlap();
+
+				length = HEADER_SIZE;
+
+				while (valid && file.length() - length >= RECORD_SIZE) {
+					byte type = in.readByte();
+					int level = in.readByte();
+					int column = in.readInt();
+					int row = in.readInt();
+
+					switch (type) {
+						case TILE_WRITTEN -> tiles.computeIfAbsent(level, l -> new HashMap<>()).put(key(column, row), true);
+						case TILE_SKIPPED -> tiles.computeIfAbsent(level, l -> new HashMap<>()).put(key(column, row), false);
+						case LEVEL_COMMITTED -> committedLevels.add(level);
+						case LEVEL_RESET -> {
+							tiles.remove(level);
+							committedLevels.remove(level);
+						}
+					}
+
+					length += RECORD_SIZE;
+				}
+			} catch (EOFException e) {
+				valid = false;
+			}
+
+			if (!valid) {
+				logger.warn("Ignoring invalid tiling checkpoint {}", file);
+			}
+		}
+
+		DataOutputStream out;
+
+		if (valid) {
+			// Drop a partially written record at the end
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(length);
+			}
+
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		} else {
+			tiles.clear();
+			committedLevels.clear();
+
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(layout.getType().ordinal());
+			out.writeInt(layout.getTileSize());
+			out.writeInt(layout.getOverlap());
+			out.flush();
+		}
+
+		TilingCheckpoint checkpoint = new TilingCheckpoint(file, out);
+		checkpoint.tiles.putAll(tiles);
+		checkpoint.committedLevels.addAll(committedLevels);
+
+		return checkpoint;
+	}
+
+	/**
+	 * @return true if the level has been committed to storage.
+	 */
+	public synchronized boolean isCommitted(int level) {
+		return committedLevels.contains(level);
+	}
+
+	/**
+	 * @return true if the tile has been written or skipped.
+	 */
+	public synchronized boolean isDone(int level, int column, int row) {
+		Map<Long, Boolean> done = tiles.get(level);
+
+		return done != null && done.containsKey(key(column, row));
+	}
+
+	/**
+	 * @return number of tiles done on the given level.
+	 */
+	public synchronized int getDoneTiles(int level) {
+		Map<Long, Boolean> done = tiles.get(level);
+
+		return done == null ? 0 : done.size();
+	}
+
+	/**
+	 * Reconciles a level with its recovered archive: written tiles which are no longer in the archive are
+	 * forgotten, and tiles which are in it are done even if their records weren't flushed, so that they are
+	 * not added to the archive again.
+	 *
+	 * @param archived tests whether the tile at the given column and row is in the archive.
+	 */
+	public synchronized void verify(int level, int columns, int rows, BiPredicate<Integer, Integer> archived) {
+		Map<Long, Boolean> done = tiles.computeIfAbsent(level, l -> new HashMap<>());
+
+		for (int column = 0; column < columns; column++) {
+			for (int row = 0; row < rows; row++) {
+				long key = key(column, row);
+
+				if (archived.test(column, row)) {
+					done.put(key, true);
+				} else if (Boolean.TRUE.equals(done.get(key))) {
+					done.remove(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forgets every tile of a level and whether it was committed; the level is generated from scratch.
+	 */
+	public synchronized void reset(int level) {
+		if (tiles.remove(level) != null | committedLevels.remove(level)) {
+			append(LEVEL_RESET, level, 0, 0);
+		}
+	}
+
+	public synchronized void tileWritten(int level, int column, int row) {
+		tiles.computeIfAbsent(level, l -> new HashMap<>()).put(key(column, row), true);
+		append(TILE_WRITTEN, level, column, row);
+	}
+
+	public synchronized void tileSkipped(int level, int column, int row) {
+		tiles.computeIfAbsent(level, l -> new HashMap<>()).put(key(column, row), false);
+		append(TILE_SKIPPED, level, column, row);
+	}
+
+	public synchronized void levelCommitted(int level) {
+		committedLevels.add(level);
+		append(LEVEL_COMMITTED, level, 0, 0);
+	}
+
+	/**
+	 * Closes and deletes the checkpoint once the slide has been tiled.
+	 */
+	public void delete() throws IOException {
+		close();
+		Files.deleteIfExists(file.toPath());
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+	private void append(byte type, int level, int column, int row) {
+		try {
+			out.writeByte(type);
+			out.writeByte(level);
+			out.writeInt(column);
+			out.writeInt(row);
+
+			// A tile whose record is lost is either recovered from the archive or generated again
+			boolean tile = type == TILE_WRITTEN || type == TILE_SKIPPED;
+			long now = System.currentTimeMillis();
+
+			if (!tile || now - lastFlush >= FLUSH_MILLIS) {
+				out.flush();
+				lastFlush = now;
+			}
+		} catch (IOException e) {
+			// The tile is generated again if tiling is interrupted
+			logger.error("Error while writing tiling checkpoint {}", file, e);
+		}
+	}
+
+	private static long key(int column, int row) {
+		return ((long) column << 32) | (row & 0xFFFFFFFFL);
+	}
+}
@@ -0,0 +1,560 @@
+package fi.ylihallila.server.generators;
+
+import fi.ylihallila.server.archivers.TileArchive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the tiles submitted for a single slide. Every tile is counted against the level
+ * it belongs to and the {@link TileArchive} of a level is saved only after the last tile of that
+ * level has finished, so no tile can be written into an archive which has already been saved.
+ * <p>
+ * All levels are submitted up front, so the tiling threads never drain between levels. Levels are
+ * handed out by {@link #awaitLevel()} in the order they finish. With an {@link Uploader}, the archive of
+ * each level is committed as soon as the level is sealed, so levels are committed while the next levels are
+ * being tiled, and levels are handed out once they have been committed.
+ * <p>
+ * The job can be cancelled at any time and is cancelled automatically once it stalls: when no tile has finished
+ * and no level has been committed for the timeout while tiles are still outstanding. Time spent only waiting
+ * for uploads doesn't count. Tiles which have not started yet are skipped and tiles which are being processed
+ * are allowed to finish, after which the level is sealed. Its archive is kept, so that its tiles are recovered
+ * when tiling is retried.
+ */
+public class TilingJob {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	/**
+	 * Commits the archive of a sealed level to storage; see {@link #setUploader(Uploader)}.
+	 */
+	public interface Uploader {
+
+		/**
+		 * Starts committing the archive of a level.
+		 *
+		 * @return completes once the archive has been committed, or exceptionally if committing it failed.
+		 */
+		CompletableFuture<Void> upload(Level level);
+	}
+
+	private final String id;
+
+	private volatile Uploader uploader;
+
+	/**
+	 * Milliseconds without progress after which the job is cancelled, or 0 if it is never cancelled.
+	 */
+	private final long timeout;
+
+	/**
+	 * Time in milliseconds when a tile last finished or a level was last committed.
+	 */
+	private volatile long lastProgress = System.currentTimeMillis();
+
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Levels whose archives have been saved, in the order they finished.
+	 */
+	private final BlockingQueue<Level> sealedLevels = new LinkedBlockingQueue<>();
+
+	/**
+	 * Every level of this job, in the order they were created.
+	 */
+	private final List<Level> levels = new CopyOnWriteArrayList<>();
+
+	private int createdLevels = 0;
+	private int returnedLevels = 0;
+
+	private final long startTime = System.currentTimeMillis();
+
+	/**
+	 * @param timeout time without progress after which the job is cancelled; zero to never cancel it.
+	 */
+	public TilingJob(String id, Duration timeout) {
+		this.id = id;
+		this.timeout = timeout.toMillis();
+	}
+
+	/**
+	 * Creates a new level for this job. Tiles are counted with {@link Level#expect(int)}
+	 * and once all tiles are submitted {@link Level#close()} must be called.
+	 */
+	public Level createLevel(int level, TileArchive archive) {
+		createdLevels++;
+
+		Level tilingLevel = new Level(level, archive);
+		levels.add(tilingLevel);
+
+		return tilingLevel;
+	}
+
+	/**
+	 * Commits the archive of each level as soon as the level is sealed. Must be set before tiles are submitted.
+	 */
+	public void setUploader(Uploader uploader) {
+		this.uploader = uploader;
+	}
+
+	/**
+	 * Waits until every level has finished and, with an {@link Uploader}, has been committed.
+	 *
+	 * @throws CancellationException if the job was cancelled.
+	 * @throws IOException if saving or committing an archive failed.
+	 */
+	public void awaitLevels() throws InterruptedException, IOException {
+		while (awaitLevel() != null) {
+			// Levels are committed by the uploader
+		}
+	}
+
+	/**
+	 * Waits until the next level has finished and its archive has been saved, and committed if the job has
+	 * an {@link Uploader}. If the job stalls while waiting it is cancelled, but this method still waits for the
+	 * running tiles and uploads to finish. The partial archives are kept for the next attempt.
+	 *
+	 * @return the next finished level, or null if every level has already been returned.
+	 * @throws CancellationException if the job was cancelled.
+	 * @throws IOException if saving or committing the archive failed.
+	 */
+	public Level awaitLevel() throws InterruptedException, IOException {
+		if (returnedLevels == createdLevels) {
+			return null;
+		}
+
+		Level level = sealedLevels.poll(1, TimeUnit.SECONDS);
+
+		while (level == null) {
+			if (isCancelled()) {
+				level = sealedLevels.take();
+			} else {
+				level = sealedLevels.poll(1, TimeUnit.SECONDS);
+			}
+		}
+
+		returnedLevels++;
+
+		if (isCancelled()) {
+			// The archives of unfinished levels are kept, so that their tiles are recovered when tiling is retried
+			drain();
+			throw new CancellationException("Tiling job " + id + " was cancelled");
+		}
+
+		if (level.getArchive() == null) {
+			// The archives of unfinished levels are kept, so that their tiles are recovered when tiling is retried
+			cancel();
+			drain();
+
+			throw new IOException("Error while saving archive for level " + level.getLevel());
+		}
+
+		if (level.getUploadError() != null) {
+			// The archives of unfinished levels are kept, so that their tiles are recovered when tiling is retried
+			cancel();
+			drain();
+
+			throw new IOException("Error while committing archive for level " + level.getLevel(), level.getUploadError());
+		}
+
+		return level;
+	}
+
+	/**
+	 * Cancels this job after submitting its tiles failed, and waits for the tiles already running and the uploads
+	 * to finish. Every level must have been closed.
+	 */
+	public void abort() throws InterruptedException {
+		cancel();
+		drain();
+	}
+
+	/**
+	 * Waits for every remaining level to finish, so that no archive is still being written or committed.
+	 */
+	private void drain() throws InterruptedException {
+		while (returnedLevels < createdLevels) {
+			sealedLevels.take();
+			returnedLevels++;
+		}
+	}
+
+	/**
+	 * Cancels this job. Tiles not yet started are skipped; tiles already running are finished.
+	 */
+	public void cancel() {
+		if (!cancelled) {
+			cancelled = true;
+			logger.info("Cancelling tiling job {}", id);
+		}
+	}
+
+	/**
+	 * @return true if this job was cancelled or has stalled.
+	 */
+	public boolean isCancelled() {
+		if (!cancelled && isStalled()) {
+			logger.warn("Tiling job {} made no progress in {} seconds", id, timeout / 1000);
+			cancelled = true;
+		}
+
+		return cancelled;
+	}
+
+	private boolean isStalled() {
+		if (timeout <= 0 || System.currentTimeMillis() - lastProgress <= timeout) {
+			return false;
+		}
+
+		for (Level level : levels) {
+			if (!level.isSealed()) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return every level of this job created so far.
+	 */
+	public List<Level> getLevels() {
+		return levels;
+	}
+
+	/**
+	 * @return tiles processed per second since the job started, excluding tiles which didn't need processing.
+	 */
+	public double getThroughput() {
+		long processed = 0;
+
+		for (Level level : levels) {
+			processed += level.getDoneTiles() - level.getSkippedTiles();
+		}
+
+		double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+
+		return seconds > 0 ? processed / seconds : 0;
+	}
+
+	/**
+	 * @return estimated seconds until every tile is done, based on the throughput so far, or -1 if unknown.
+	 */
+	public long getEstimatedTimeRemaining() {
+		long remaining = 0;
+
+		for (Level level : levels) {
+			remaining += Math.max(0, level.getTotalTiles() - level.getDoneTiles());
+		}
+
+		double throughput = getThroughput();
+
+		if (remaining == 0) {
+			return 0;
+		}
+
+		return throughput > 0 ? Math.round(remaining / throughput) : -1;
+	}
+
+	/**
+	 * @return the progress of this job and each of its levels.
+	 */
+	public Map<String, Object> getProgress() {
+		List<Map<String, Object>> levelProgress = new ArrayList<>();
+
+		long total = 0, done = 0, bytes = 0, background = 0, written = 0, encoded = 0, encodeTime = 0;
+		int uploading = 0;
+
+		for (Level level : levels) {
+			levelProgress.add(level.getProgress());
+
+			if (level.isUploading()) {
+				uploading++;
+			}
+
+			total      += level.getTotalTiles();
+			done       += level.getDoneTiles();
+			bytes      += level.getBytesWritten();
+			background += level.getBackgroundTiles();
+			written    += level.getWrittenTiles();
+			encoded    += level.getEncodedTiles();
+			encodeTime += level.getEncodeTime();
+		}
+
+		Map<String, Object> progress = new LinkedHashMap<>();
+		progress.put("tilesTotal", total);
+		progress.put("tilesDone", done);
+		progress.put("tilesPerSecond", Math.round(getThroughput() * 10) / 10.0);
+		progress.put("bytesWritten", bytes);
+		progress.put("bytesPerTile", written == 0 ? 0 : bytes / written);
+		progress.put("encodeMillisPerTile", encoded == 0 ? 0 : Math.round(encodeTime / 1e4 / encoded) / 100.0);
+		progress.put("backgroundTiles", background);
+		progress.put("levelsUploading", uploading);
+		progress.put("startTime", startTime);
+		progress.put("eta", getEstimatedTimeRemaining());
+		progress.put("cancelled", cancelled);
+		progress.put("levels", levelProgress);
+
+		return progress;
+	}
+
+	public class Level {
+
+		private final int level;
+		private final TileArchive archive;
+
+		/**
+		 * Number of tiles submitted but not yet finished. Starts at one, which is released
+		 * by {@link #close()}, so that the level can't be sealed while tiles are still being submitted.
+		 */
+		private final AtomicInteger outstanding = new AtomicInteger(1);
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+		private final AtomicInteger submitted = new AtomicInteger(0);
+
+		/**
+		 * Number of tiles on this level, see {@link #setTotalTiles(int)}.
+		 */
+		private volatile int totalTiles = 0;
+
+		private final AtomicInteger done = new AtomicInteger(0);
+		private final AtomicInteger skipped = new AtomicInteger(0);
+		private final AtomicInteger written = new AtomicInteger(0);
+		private final AtomicInteger background = new AtomicInteger(0);
+		private final AtomicLong bytesWritten = new AtomicLong(0);
+		private final AtomicInteger encoded = new AtomicInteger(0);
+		private final AtomicLong encodeTime = new AtomicLong(0);
+
+		private volatile File file;
+
+		private volatile boolean uploading = false;
+		private volatile boolean committed = false;
+		private volatile Throwable uploadError;
+
+		private final long startTime = System.currentTimeMillis();
+
+		private Level(int level, TileArchive archive) {
+			this.level = level;
+			this.archive = archive;
+		}
+
+		/**
+		 * Registers tiles which are about to be processed. Each of these tiles must call
+		 * {@link #tileDone()} once it has finished, been skipped or failed.
+		 */
+		public void expect(int tiles) {
+			outstanding.addAndGet(tiles);
+			submitted.addAndGet(tiles);
+		}
+
+		/**
+		 * Marks that all tiles for this level have been submitted. Only the first call has an effect.
+		 */
+		public void close() {
+			if (closed.compareAndSet(false, true)) {
+				release();
+			}
+		}
+
+		/**
+		 * Sets the number of tiles on this level, including tiles which are never submitted.
+		 */
+		public void setTotalTiles(int totalTiles) {
+			this.totalTiles = totalTiles;
+		}
+
+		/**
+		 * Counts a tile which doesn't need to be processed, such as a tile without tissue or
+		 * a tile done by a previous attempt, as done.
+		 */
+		public void tileSkipped() {
+			skipped.incrementAndGet();
+			done.incrementAndGet();
+			lastProgress = System.currentTimeMillis();
+		}
+
+		/**
+		 * Counts a tile which was added to the archive.
+		 */
+		public void tileWritten(int bytes) {
+			written.incrementAndGet();
+			bytesWritten.addAndGet(bytes);
+		}
+
+		/**
+		 * Counts a tile which was encoded.
+		 *
+		 * @param nanos time spent encoding the tile.
+		 */
+		public void tileEncoded(long nanos) {
+			encoded.incrementAndGet();
+			encodeTime.addAndGet(nanos);
+		}
+
+		/**
+		 * Counts a tile which wasn't added to the archive because it is background.
+		 */
+		public void tileBackground() {
+			background.incrementAndGet();
+		}
+
+		public int getLevel() {
+			return level;
+		}
+
+		/**
+		 * @return true if the job of this level has been cancelled; see {@link TilingJob#isCancelled()}.
+		 */
+		public boolean isCancelled() {
+			return TilingJob.this.isCancelled();
+		}
+
+		public int getSubmittedTiles() {
+			return submitted.get();
+		}
+
+		public int getTotalTiles() {
+			return totalTiles;
+		}
+
+		public int getDoneTiles() {
+			return done.get();
+		}
+
+		public int getSkippedTiles() {
+			return skipped.get();
+		}
+
+		public int getWrittenTiles() {
+			return written.get();
+		}
+
+		public int getBackgroundTiles() {
+			return background.get();
+		}
+
+		public long getBytesWritten() {
+			return bytesWritten.get();
+		}
+
+		public int getEncodedTiles() {
+			return encoded.get();
+		}
+
+		/**
+		 * @return total time spent encoding the tiles of this level in nanoseconds.
+		 */
+		public long getEncodeTime() {
+			return encodeTime.get();
+		}
+
+		/**
+		 * @return true once every tile of this level is done and its archive has been saved.
+		 */
+		public boolean isSealed() {
+			return outstanding.get() == 0;
+		}
+
+		/**
+		 * @return true while the archive of this level is waiting to be committed or being committed.
+		 */
+		public boolean isUploading() {
+			return uploading;
+		}
+
+		/**
+		 * @return true once the archive of this level has been committed by the {@link Uploader}.
+		 */
+		public boolean isCommitted() {
+			return committed;
+		}
+
+		/**
+		 * @return why committing the archive of this level failed or null if it hasn't failed.
+		 */
+		public Throwable getUploadError() {
+			return uploadError;
+		}
+
+		private Map<String, Object> getProgress() {
+			Map<String, Object> progress = new LinkedHashMap<>();
+			progress.put("level", level);
+			progress.put("tilesTotal", totalTiles);
+			progress.put("tilesDone", done.get());
+			progress.put("tilesWritten", written.get());
+			progress.put("backgroundTiles", background.get());
+			progress.put("bytesWritten", bytesWritten.get());
+			progress.put("bytesPerTile", written.get() == 0 ? 0 : bytesWritten.get() / written.get());
+			progress.put("encodeMillisPerTile", encoded.get() == 0 ? 0 : Math.round(encodeTime.get() / 1e4 / encoded.get()) / 100.0);
+			progress.put("sealed", isSealed());
+			progress.put("committed", committed);
+
+			if (uploadError != null) {
+				progress.put("error", String.valueOf(uploadError.getMessage()));
+			}
+
+			return progress;
+		}
+
+		/**
+		 * @return the saved archive or null if the level hasn't finished or saving it failed.
+		 */
+		public File getArchive() {
+			return file;
+		}
+
+		/**
+		 * Marks a tile of this level as finished.
+		 */
+		public void tileDone() {
+			done.incrementAndGet();
+			lastProgress = System.currentTimeMillis();
+			release();
+		}
+
+		private void release() {
+			if (outstanding.decrementAndGet() == 0) {
+				seal();
+			}
+		}
+
+		private void seal() {
+			file = archive.save();
+
+			logger.debug("Level {} of {} done; {} tiles in {} ms", level, id, submitted.get(), System.currentTimeMillis() - startTime);
+
+			Uploader uploader = TilingJob.this.uploader;
+
+			if (file == null || uploader == null || isCancelled()) {
+				sealedLevels.add(this);
+				return;
+			}
+
+			uploading = true;
+
+			uploader.upload(this).whenComplete((result, e) -> {
+				if (e == null) {
+					committed = true;
+					lastProgress = System.currentTimeMillis();
+				} else {
+					uploadError = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+					logger.error("Error while committing level {} of {}", level, id, uploadError);
+				}
+
+				uploading = false;
+				sealedLevels.add(this);
+			});
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package fi.ylihallila.server.generators;
+
+import fi.ylihallila.server.util.Config;
+
+/**
+ * Options for tiling a single slide. Options which are not set use the server configuration,
+ * see {@link #withDefaults(String)}.
+ */
+public class TilingOptions {
+
+	/**
+	 * Smallest supported tile size.
+	 */
+	public static final int MIN_TILE_SIZE = 16;
+
+	private final String encoder;
+	private final Integer tileSize;
+	private final Integer overlap;
+	private final String layout;
+
+	/**
+	 * @param encoder name of the {@link TileEncoder} or null.
+	 * @param tileSize size of the tile grid or null.
+	 * @param overlap overlap of neighbouring tiles or null; only supported by the DeepZoom layout.
+	 * @param layout name of the {@link PyramidLayout.Type} or null.
+	 */
+	public TilingOptions(String encoder, Integer tileSize, Integer overlap, String layout) {
+		this.encoder = encoder == null || encoder.isBlank() ? null : encoder.toLowerCase();
+		this.tileSize = tileSize;
+		this.overlap = overlap;
+		this.layout = layout == null || layout.isBlank() ? null : layout.toLowerCase();
+	}
+
+	/**
+	 * @return options which use the server configuration for everything.
+	 */
+	public static TilingOptions defaults() {
+		return new TilingOptions(null, null, null, null);
+	}
+
+	/**
+	 * Fills in the options which are not set. The encoder is <code>[provider].encoder</code> if set and otherwise
+	 * <code>tiler.encoder.format</code>; the tile size, overlap and layout are <code>tiler.tiles.*</code>.
+	 *
+	 * @param provider name of the storage provider, as in <code>storage.provider</code>.
+	 */
+	public TilingOptions withDefaults(String provider) {
+		String encoder = this.encoder;
+
+		if (encoder == null) {
+			String providerPath = provider + ".encoder";
+
+			if (Config.Config.hasPath(providerPath) && !Config.Config.getString(providerPath).isBlank()) {
+				encoder = Config.Config.getString(providerPath);
+			} else {
+				encoder = Config.Config.getString("tiler.encoder.format");
+			}
+		}
+
+		return new TilingOptions(
+			encoder,
+			tileSize != null ? tileSize : Integer.valueOf(Config.Config.getInt("tiler.tiles.size")),
+			overlap  != null ? overlap  : Integer.valueOf(Config.Config.getInt("tiler.tiles.overlap")),
+			layout   != null ? layout   : Config.Config.getString("tiler.tiles.layout")
+		);
+	}
+
+	/**
+	 * Checks options which have been filled in with {@link #withDefaults(String)}.
+	 *
+	 * @param maxTileSize width and height of the largest tile the tiler supports, including overlap.
+	 * @return a description of what is wrong or null if the options are valid.
+	 */
+	public String validate(int maxTileSize) {
+		PyramidLayout.Type type = PyramidLayout.Type.of(layout);
+
+		if (!TileEncoder.isSupported(encoder)) {
+			return "Unknown tile encoder " + encoder + "; supported encoders are " + String.join(", ", TileEncoder.NAMES) + ".";
+		}
+
+		if (type == null) {
+			return "Unknown layout " + layout + "; supported layouts are openslide and deepzoom.";
+		}
+
+		if (tileSize < MIN_TILE_SIZE) {
+			return "Tile size must be at least " + MIN_TILE_SIZE + ".";
+		}
+
+		if (overlap < 0 || overlap * 2 >= tileSize) {
+			return "Overlap must be at least 0 and less than half of the tile size.";
+		}
+
+		if (overlap > 0 && type != PyramidLayout.Type.DEEPZOOM) {
+			return "Overlap is only supported by the deepzoom layout.";
+		}
+
+		if (type == PyramidLayout.Type.DEEPZOOM && tileSize % 2 != 0) {
+			// Each DeepZoom level is built by halving the level below it
+			return "Tile size must be even with the deepzoom layout.";
+		}
+
+		if (tileSize + 2 * overlap > maxTileSize) {
+			return "Tiles may be at most " + maxTileSize + " pixels including overlap.";
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return name of the encoder or null if not set.
+	 */
+	public String getEncoder() {
+		return encoder;
+	}
+
+	/**
+	 * @return size of the tile grid or null if not set.
+	 */
+	public Integer getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * @return overlap of neighbouring tiles or null if not set.
+	 */
+	public Integer getOverlap() {
+		return overlap;
+	}
+
+	/**
+	 * @return name of the layout or null if not set.
+	 */
+	public String getLayout() {
+		return layout;
+	}
+
+	@Override
+	public String toString() {
+		return "TilingOptions{" +
+			"encoder='" + encoder + '\'' +
+			", tileSize=" + tileSize +
+			", overlap=" + overlap +
+			", layout='" + layout + '\'' +
+			'}';
+	}
+}
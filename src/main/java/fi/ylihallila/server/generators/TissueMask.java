@@ -0,0 +1,199 @@
+package fi.ylihallila.server.generators;
+
+import org.openslide.OpenSlide;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * A low resolution mask of the areas of a slide which contain tissue. Tiles which don't overlap any tissue
+ * can be skipped without reading them from OpenSlide.
+ * <p>
+ * The mask is built from a thumbnail of the slide. A pixel is tissue when it is saturated enough (stained
+ * tissue) or dark enough (optical density above threshold); transparent pixels, i.e. areas which weren't scanned,
+ * are never tissue. The mask is then dilated by a margin to keep faint edges of the tissue.
+ */
+public class TissueMask {
+
+	private final int width;
+	private final int height;
+
+	/**
+	 * Level 0 pixels per mask pixel.
+	 */
+	private final double scaleX;
+	private final double scaleY;
+
+	private final int offsetX;
+	private final int offsetY;
+
+	/**
+	 * Summed-area table of the mask, <code>(width + 1) * (height + 1)</code>, so that the amount
+	 * of tissue in any rectangle can be looked up in constant time.
+	 */
+	private final int[] sums;
+
+	private TissueMask(boolean[] mask, int width, int height, double scaleX, double scaleY, int offsetX, int offsetY) {
+		this.width = width;
+		this.height = height;
+		this.scaleX = scaleX;
+		this.scaleY = scaleY;
+		this.offsetX = offsetX;
+		this.offsetY = offsetY;
+		this.sums = new int[(width + 1) * (height + 1)];
+
+		for (int y = 0; y < height; y++) {
+			int rowSum = 0;
+
+			for (int x = 0; x < width; x++) {
+				rowSum += mask[y * width + x] ? 1 : 0;
+				sums[(y + 1) * (width + 1) + x + 1] = sums[y * (width + 1) + x + 1] + rowSum;
+			}
+		}
+	}
+
+	/**
+	 * Builds a tissue mask for the given region of the slide.
+	 *
+	 * @param x level 0 coordinate of the region.
+	 * @param y level 0 coordinate of the region.
+	 * @param width level 0 width of the region.
+	 * @param height level 0 height of the region.
+	 * @param size maximum width or height of the thumbnail the mask is built from.
+	 * @param saturation minimum saturation (0-1) of tissue.
+	 * @param opticalDensity minimum mean optical density of tissue.
+	 * @param margin number of mask pixels the tissue is grown by.
+	 */
+	public static TissueMask create(OpenSlide openSlide, int x, int y, int width, int height, int size,
+	                                double saturation, double opticalDensity, int margin) throws IOException {
+		BufferedImage thumbnail = openSlide.createThumbnailImage(x, y, width, height, size);
+
+		int w = thumbnail.getWidth();
+		int h = thumbnail.getHeight();
+		int[] pixels = thumbnail.getRGB(0, 0, w, h, null, 0, w);
+
+		// Mean intensity below which a pixel is dark enough to be tissue
+		double maxIntensity = 255 * Math.pow(10, -opticalDensity);
+
+		boolean[] tissue = new boolean[w * h];
+
+		for (int i = 0; i < pixels.length; i++) {
+			int pixel = pixels[i];
+
+			if ((pixel >>> 24) == 0) {
+				continue;
+			}
+
+			int r = (pixel >> 16) & 0xFF;
+			int g = (pixel >> 8)  & 0xFF;
+			int b =  pixel        & 0xFF;
+
+			int max = Math.max(r, Math.max(g, b));
+			int min = Math.min(r, Math.min(g, b));
+
+			tissue[i] = (max > 0 && (max - min) >= saturation * max) || (r + g + b) / 3.0 <= maxIntensity;
+		}
+
+		return new TissueMask(dilate(tissue, w, h, margin), w, h, 1.0 * width / w, 1.0 * height / h, x, y);
+	}
+
+	/**
+	 * Checks whether a region of the slide overlaps tissue.
+	 *
+	 * @param x level 0 coordinate of the region.
+	 * @param y level 0 coordinate of the region.
+	 * @param width level 0 width of the region.
+	 * @param height level 0 height of the region.
+	 * @return true if the region contains tissue.
+	 */
+	public boolean containsTissue(long x, long y, long width, long height) {
+		int x0 = clamp((int) Math.floor((x - offsetX) / scaleX), this.width);
+		int y0 = clamp((int) Math.floor((y - offsetY) / scaleY), this.height);
+		int x1 = clamp((int) Math.ceil((x - offsetX + width)  / scaleX), this.width);
+		int y1 = clamp((int) Math.ceil((y - offsetY + height) / scaleY), this.height);
+
+		if (x1 <= x0 || y1 <= y0) {
+			return false;
+		}
+
+		int stride = this.width + 1;
+		int count = sums[y1 * stride + x1] - sums[y0 * stride + x1] - sums[y1 * stride + x0] + sums[y0 * stride + x0];
+
+		return count > 0;
+	}
+
+	/**
+	 * @return fraction of the mask which is tissue.
+	 */
+	public double getTissueFraction() {
+		return 1.0 * sums[sums.length - 1] / (width * height);
+	}
+
+	private static boolean[] dilate(boolean[] mask, int width, int height, int margin) {
+		if (margin <= 0) {
+			return mask;
+		}
+
+		boolean[] horizontal = new boolean[mask.length];
+
+		for (int y = 0; y < height; y++) {
+			int last = Integer.MIN_VALUE / 2;
+
+			for (int x = 0; x < width; x++) {
+				if (mask[y * width + x]) {
+					last = x;
+				}
+
+				if (x - last <= margin) {
+					horizontal[y * width + x] = true;
+				}
+			}
+
+			last = Integer.MAX_VALUE / 2;
+
+			for (int x = width - 1; x >= 0; x--) {
+				if (mask[y * width + x]) {
+					last = x;
+				}
+
+				if (last - x <= margin) {
+					horizontal[y * width + x] = true;
+				}
+			}
+		}
+
+		boolean[] dilated = new boolean[mask.length];
+
+		for (int x = 0; x < width; x++) {
+			int last = Integer.MIN_VALUE / 2;
+
+			for (int y = 0; y < height; y++) {
+				if (horizontal[y * width + x]) {
+					last = y;
+				}
+
+				if (y - last <= margin) {
+					dilated[y * width + x] = true;
+				}
+			}
+
+			last = Integer.MAX_VALUE / 2;
+
+			for (int y = height - 1; y >= 0; y--) {
+				if (horizontal[y * width + x]) {
+					last = y;
+				}
+
+				if (last - y <= margin) {
+					dilated[y * width + x] = true;
+				}
+			}
+		}
+
+		return dilated;
+	}
+
+	private static int clamp(int value, int max) {
+		return Math.max(0, Math.min(max, value));
+	}
+}
@@ -38,6 +38,12 @@ public class Slide {
      */
     private boolean tiled = false;
 
+    /**
+     * Finest pyramid level whose tiles are available while the slide is being tiled, or null if no level is
+     * available yet. Levels are tiled from the coarsest down, so the slide can be viewed up to this level.
+     */
+    private Integer availableLevel;
+
     public Slide() {}
 
     public Slide(String id, String name, Owner owner) {
@@ -91,6 +97,14 @@ public class Slide {
         this.tiled = tiled;
     }
 
+    public Integer getAvailableLevel() {
+        return availableLevel;
+    }
+
+    public void setAvailableLevel(Integer availableLevel) {
+        this.availableLevel = availableLevel;
+    }
+
     @Override
     public String toString() {
         return "Slide{" +
@@ -98,6 +112,7 @@ public class Slide {
                 ", name='" + name + '\'' +
                 ", owner=" + owner +
                 ", tiled=" + tiled +
+                ", availableLevel=" + availableLevel +
                 '}';
     }
 }
@@ -0,0 +1,282 @@
+package fi.ylihallila.server.models;
+
+import fi.ylihallila.server.generators.Tiler;
+
+import javax.persistence.*;
+
+/**
+ * A slide queued for tiling. Entries are kept in the database so that the tiling queue survives restarts;
+ * see {@link Tiler}.
+ */
+@Entity
+@Table( name = "tiling_queue" )
+public class TilingQueueEntry {
+
+    public enum State {
+
+        /**
+         * Waiting to be tiled.
+         */
+        QUEUED,
+
+        /**
+         * Being tiled; no levels have been committed yet.
+         */
+        RUNNING,
+
+        /**
+         * Being tiled; at least one level has been committed, see {@link #getLevelsDone()}.
+         */
+        LEVEL_DONE,
+
+        /**
+         * Tiling failed and will not be retried automatically.
+         */
+        FAILED,
+
+        /**
+         * Tiled successfully.
+         */
+        DONE;
+
+        /**
+         * @return true if the slide still needs to be tiled.
+         */
+        public boolean isUnfinished() {
+            return this == QUEUED || this == RUNNING || this == LEVEL_DONE;
+        }
+    }
+
+    /**
+     * UUID of the slide.
+     */
+    @Id
+    @Column(name = "id", updatable = false, nullable = false)
+    private String id;
+
+    /**
+     * Path to the pending slide file.
+     */
+    private String path;
+
+    /**
+     * Id of the organization or user who owns the slide.
+     */
+    private String ownerId;
+
+    @Enumerated(EnumType.STRING)
+    private Tiler.Priority priority;
+
+    @Enumerated(EnumType.STRING)
+    private State state;
+
+    /**
+     * Tile encoder requested for this slide or null to use the configured encoder.
+     */
+    private String encoder;
+
+    /**
+     * Tile size requested for this slide or null to use the configured tile size.
+     */
+    private Integer tileSize;
+
+    /**
+     * Tile overlap requested for this slide or null to use the configured overlap.
+     */
+    private Integer overlap;
+
+    /**
+     * Pyramid layout requested for this slide or null to use the configured layout.
+     */
+    private String layout;
+
+    /**
+     * Number of times tiling this slide has been started.
+     */
+    private int attempts = 0;
+
+    /**
+     * Number of levels committed during the current attempt.
+     */
+    private int levelsDone = 0;
+
+    /**
+     * Why the last attempt to tile this slide failed, such as an archive which couldn't be committed to storage,
+     * or null if it hasn't failed.
+     */
+    @Column(length = 1024)
+    private String lastError;
+
+    /**
+     * Name of the tiler node which holds the lease of this slide or null if it isn't leased.
+     */
+    private String leaseOwner;
+
+    /**
+     * Unix timestamp when the lease expires unless its owner renews it.
+     */
+    private Long leaseExpiresAt;
+
+    /**
+     * Unix timestamp when this slide was queued.
+     */
+    private Long createdAt;
+
+    /**
+     * Unix timestamp when this entry was last updated.
+     */
+    private Long updatedAt;
+
+    public TilingQueueEntry() {}
+
+    public TilingQueueEntry(String id, String path, String ownerId, Tiler.Priority priority,
+                            String encoder, Integer tileSize, Integer overlap, String layout) {
+        this.id = id;
+        this.path = path;
+        this.ownerId = ownerId;
+        this.priority = priority;
+        this.encoder = encoder;
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+        this.layout = layout;
+        this.state = State.QUEUED;
+        this.createdAt = System.currentTimeMillis();
+        this.updatedAt = createdAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public Tiler.Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Tiler.Priority priority) {
+        this.priority = priority;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public void setState(State state) {
+        this.state = state;
+        this.updatedAt = System.currentTimeMillis();
+    }
+
+    public String getEncoder() {
+        return encoder;
+    }
+
+    public void setEncoder(String encoder) {
+        this.encoder = encoder;
+    }
+
+    public Integer getTileSize() {
+        return tileSize;
+    }
+
+    public void setTileSize(Integer tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    public Integer getOverlap() {
+        return overlap;
+    }
+
+    public void setOverlap(Integer overlap) {
+        this.overlap = overlap;
+    }
+
+    public String getLayout() {
+        return layout;
+    }
+
+    public void setLayout(String layout) {
+        this.layout = layout;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public int getLevelsDone() {
+        return levelsDone;
+    }
+
+    public void setLevelsDone(int levelsDone) {
+        this.levelsDone = levelsDone;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError == null || lastError.length() <= 1024 ? lastError : lastError.substring(0, 1024);
+    }
+
+    public String getLeaseOwner() {
+        return leaseOwner;
+    }
+
+    public Long getLeaseExpiresAt() {
+        return leaseExpiresAt;
+    }
+
+    /**
+     * @return true if a node holds the lease of this slide and it hasn't expired.
+     */
+    public boolean isLeased() {
+        return leaseOwner != null && leaseExpiresAt != null && leaseExpiresAt > System.currentTimeMillis();
+    }
+
+    /**
+     * Leases this slide to a tiler node until the given time.
+     */
+    public void setLease(String owner, long expiresAt) {
+        this.leaseOwner = owner;
+        this.leaseExpiresAt = expiresAt;
+    }
+
+    public void releaseLease() {
+        this.leaseOwner = null;
+        this.leaseExpiresAt = null;
+    }
+
+    public Long getCreatedAt() {
+        return createdAt;
+    }
+
+    public Long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "TilingQueueEntry{" +
+                "id='" + id + '\'' +
+                ", state=" + state +
+                ", priority=" + priority +
+                ", attempts=" + attempts +
+                ", leaseOwner='" + leaseOwner + '\'' +
+                '}';
+    }
+}
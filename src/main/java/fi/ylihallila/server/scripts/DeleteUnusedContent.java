@@ -0,0 +1,64 @@
+package fi.ylihallila.server.scripts;
+
+import fi.ylihallila.server.storage.LocalSlideStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Deletes the content of deduplicated tiles which no tile links to anymore, as the slide was deleted or tiled
+ * again. Content is a hard link shared by its tiles, so content with a single link is unused. Content touched
+ * within a week is kept, as the tiles of a slide being tiled may not have been linked to it yet.
+ */
+public class DeleteUnusedContent extends Script {
+
+    private final long A_WEEK = TimeUnit.DAYS.toMillis(7);
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Override String getDescription() {
+        return "Remove the content of deduplicated tiles which no tile links to daily";
+    }
+
+    @Override long getInterval() {
+        return TimeUnit.DAYS.toSeconds(1);
+    }
+
+    @Override public void run() {
+        long NOW = System.currentTimeMillis();
+        Path contentDirectory = LocalSlideStorage.getContentDirectory();
+
+        if (!Files.isDirectory(contentDirectory)) {
+            return;
+        }
+
+        logger.debug("Deleting unused tile content ...");
+        int deleted = 0;
+
+        try (Stream<Path> files = Files.walk(contentDirectory)) {
+            List<Path> contents = files.filter(Files::isRegularFile).collect(Collectors.toList());
+
+            for (Path content : contents) {
+                if ((int) Files.getAttribute(content, "unix:nlink") > 1) {
+                    continue;
+                }
+
+                if (NOW > (Files.getLastModifiedTime(content).toMillis() + A_WEEK)) {
+                    Files.delete(content);
+                    deleted++;
+                }
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.error("Error while deleting unused tile content", e);
+        }
+
+        logger.debug("Deleted {} unused tile contents", deleted);
+    }
+}
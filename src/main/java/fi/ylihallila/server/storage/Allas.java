@@ -1,5 +1,7 @@
 package fi.ylihallila.server.storage;
 
+import fi.ylihallila.server.archivers.TarTileArchive;
+import fi.ylihallila.server.archivers.TileArchive;
 import org.javaswift.joss.client.factory.AccountFactory;
 import org.javaswift.joss.client.factory.AuthenticationMethod;
 import org.javaswift.joss.client.factory.AuthenticationMethodScope;
@@ -21,6 +23,11 @@ public class Allas implements StorageProvider {
     private final String THUMBNAIL_NAME_FORMAT = "{id}/thumbnail.jpg";
     private final String THUMBNAIL_URL         = "{host}/" + THUMBNAIL_NAME_FORMAT;
 
+    // Archives are extracted under "tiles", so the descriptor is placed there as well
+    private final String DEEP_ZOOM_NAME_FORMAT      = "tiles/slide.dzi";
+    private final String DEEP_ZOOM_URL              = "{host}/{id}/" + DEEP_ZOOM_NAME_FORMAT;
+    private final String DEEP_ZOOM_TILE_NAME_FORMAT = "slide_files/{level}/{column}_{row}.jpg";
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     /**
@@ -96,6 +103,13 @@ public class Allas implements StorageProvider {
         logger.debug("Uploaded archive {} to Allas Bucket {}", file.getName(), container.getName());
     }
 
+    /**
+     * Allas extracts only tar archives, so archives are always tar regardless of <code>storage.archive</code>.
+     */
+    @Override public TileArchive createArchive(String id, int level, boolean resume) {
+        return new TarTileArchive(id, level, resume);
+    }
+
     @Override public String getTilesURI() {
         String host = account.getPublicURL();
 
@@ -108,6 +122,31 @@ public class Allas implements StorageProvider {
         return THUMBNAIL_URL.replace("{host}", host);
     }
 
+    @Override public String getDeepZoomURI() {
+        String host = account.getPublicURL();
+
+        return DEEP_ZOOM_URL.replace("{host}", host);
+    }
+
+    @Override public String getDeepZoomNamingFormat() {
+        return DEEP_ZOOM_NAME_FORMAT;
+    }
+
+    @Override public String getDeepZoomTileNamingFormat() {
+        return DEEP_ZOOM_TILE_NAME_FORMAT;
+    }
+
+    /**
+     * Archives are extracted by the object storage, which doesn't support links.
+     */
+    @Override public String getContentNamingFormat() {
+        return null;
+    }
+
+    @Override public boolean hasContent(String name) {
+        return false;
+    }
+
     @Override public String getTileNamingFormat() {
         return TILE_NAME_FORMAT;
     }
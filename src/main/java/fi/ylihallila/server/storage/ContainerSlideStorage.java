@@ -0,0 +1,192 @@
+package fi.ylihallila.server.storage;
+
+import fi.ylihallila.server.archivers.ContainerTileArchive;
+import fi.ylihallila.server.archivers.TileArchive;
+import fi.ylihallila.server.archivers.TileContainer;
+import fi.ylihallila.server.util.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static fi.ylihallila.server.util.Config.Config;
+
+/**
+ * Local storage which keeps the tiles of a slide in a single {@link TileContainer} instead of a file per tile.
+ * The tiles are served from the container at the same URIs as loose tiles, while the thumbnail and the other
+ * files of the slide are stored as files as in {@link LocalSlideStorage}.
+ */
+public class ContainerSlideStorage extends LocalSlideStorage {
+
+    public static final String CONTAINER_NAME = "tiles" + TileContainer.EXTENSION;
+
+    private static final Logger logger = LoggerFactory.getLogger(ContainerSlideStorage.class);
+
+    @Override public TileArchive createArchive(String id, int level, boolean resume) {
+        return new ContainerTileArchive(id, level, resume);
+    }
+
+    /**
+     * Appends the tiles of the archive of a level to the container of the slide.
+     */
+    @Override public void commitArchive(File file) throws IOException {
+        String id = file.getName().substring(0, file.getName().lastIndexOf("-level-"));
+
+        Path container = getContainer(id);
+        Files.createDirectories(container.getParent());
+
+        TileContainer.append(container, file.toPath(), id + "/");
+    }
+
+    /**
+     * Containers can't link to content.
+     */
+    @Override public String getContentNamingFormat() {
+        return null;
+    }
+
+    @Override public boolean hasContent(String name) {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return "Local container storage";
+    }
+
+    /**
+     * @return true if <code>storage.provider</code> is container storage, which the tiles of a slide can be packed
+     *         into and served from.
+     */
+    public static boolean isEnabled() {
+        return Config.getString("storage.provider").equalsIgnoreCase("container");
+    }
+
+    /**
+     * @return the container of the tiles of a slide; the names of the tiles in it don't include the id.
+     */
+    public static Path getContainer(String id) {
+        return Path.of(Constants.TILE_DIRECTORY, id, CONTAINER_NAME);
+    }
+
+    /**
+     * Packs the loose tiles of a slide into its container, appending them to the container if it already exists,
+     * and deletes them once the container has been written. The server can keep serving the slide meanwhile, as
+     * tiles are served from the container when they aren't found as files. Files directly in the directory of the
+     * slide, such as the thumbnail, are kept as is. Tiles changed while packing are kept as files.
+     *
+     * @return number of tiles packed.
+     */
+    public static int pack(String id) throws IOException {
+        Path directory = Path.of(Constants.TILE_DIRECTORY, id);
+        Map<Path, FileTime> tiles = new LinkedHashMap<>();
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                if (!file.getParent().equals(directory) && Files.isRegularFile(file) && !file.toString().endsWith(".tmp")) {
+                    tiles.put(file, Files.getLastModifiedTime(file));
+                }
+            }
+        }
+
+        if (tiles.isEmpty()) {
+            return 0;
+        }
+
+        Path segment = Files.createTempFile(Path.of(Constants.TEMP_DIRECTORY), id, TileContainer.EXTENSION);
+
+        try {
+            try (TileContainer.Writer writer = new TileContainer.Writer(segment.toFile())) {
+                for (Path tile : tiles.keySet()) {
+                    String name = directory.relativize(tile).toString().replace(File.separatorChar, '/');
+
+                    writer.add(name, Files.readAllBytes(tile));
+                }
+            }
+
+            TileContainer.append(getContainer(id), segment, "");
+        } finally {
+            Files.deleteIfExists(segment);
+        }
+
+        for (Map.Entry<Path, FileTime> tile : tiles.entrySet()) {
+            if (Files.getLastModifiedTime(tile.getKey()).equals(tile.getValue())) {
+                Files.delete(tile.getKey());
+            }
+        }
+
+        // Level directories left empty
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                if (!file.equals(directory) && Files.isDirectory(file) && isEmpty(file)) {
+                    Files.delete(file);
+                }
+            }
+        }
+
+        return tiles.size();
+    }
+
+    /**
+     * Packs the loose tiles of every slide; see {@link #pack(String)}. Slides which can't be packed are logged
+     * and skipped.
+     */
+    public static void packAll() {
+        List<String> ids;
+
+        try (Stream<Path> directories = Files.list(Path.of(Constants.TILE_DIRECTORY))) {
+            ids = directories
+                .filter(Files::isDirectory)
+                .map(directory -> directory.getFileName().toString())
+                .filter(ContainerSlideStorage::isSlideId)
+                .sorted()
+                .collect(Collectors.toList());
+        } catch (IOException e) {
+            logger.error("Error while listing slides to pack", e);
+            return;
+        }
+
+        logger.info("Packing the tiles of {} slides into containers ...", ids.size());
+
+        int packed = 0;
+
+        for (String id : ids) {
+            try {
+                int tiles = pack(id);
+
+                if (tiles > 0) {
+                    logger.info("Packed {} tiles of {}", tiles, id);
+                    packed++;
+                }
+            } catch (IOException e) {
+                logger.error("Error while packing the tiles of {}", id, e);
+            }
+        }
+
+        logger.info("Packed the tiles of {} slides", packed);
+    }
+
+    /**
+     * Slides are named by UUIDs, which leaves out the content-addressed area of deduplicated tiles.
+     */
+    private static boolean isSlideId(String name) {
+        try {
+            return UUID.fromString(name).toString().equals(name);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static boolean isEmpty(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.findAny().isEmpty();
+        }
+    }
+}
@@ -1,15 +1,22 @@
 package fi.ylihallila.server.storage;
 
+import fi.ylihallila.server.scripts.DeleteUnusedContent;
 import fi.ylihallila.server.util.Constants;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarFile;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.commons.compress.utils.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Enumeration;
 import java.util.List;
 
 import static fi.ylihallila.server.util.Config.Config;
@@ -22,6 +29,12 @@ public class LocalSlideStorage implements StorageProvider {
     private final String THUMBNAIL_NAME_FORMAT = "{id}/thumbnail.jpg";
     private final String THUMBNAIL_URL         = "{host}/tiles/" + THUMBNAIL_NAME_FORMAT;
 
+    private static final String CONTENT_NAME_FORMAT = "content/{prefix}/{hash}";
+
+    private final String DEEP_ZOOM_NAME_FORMAT      = "{id}/slide.dzi";
+    private final String DEEP_ZOOM_URL              = "{host}/tiles/" + DEEP_ZOOM_NAME_FORMAT;
+    private final String DEEP_ZOOM_TILE_NAME_FORMAT = "{id}/slide_files/{level}/{column}_{row}.jpg";
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     @Override public void commitFile(File file) {
@@ -43,31 +56,82 @@ public class LocalSlideStorage implements StorageProvider {
         }
     }
 
-    @Override public void commitArchive(File file) {
-        try {
-            Path tileDirectory = Path.of(Constants.TILE_DIRECTORY);
+    @Override public void commitArchive(File file) throws IOException {
+        if (file.getName().endsWith(".zip")) {
+            commitZipArchive(file);
+            return;
+        }
 
-            try (TarFile archive = new TarFile(file)) {
-                List<TarArchiveEntry> entries = archive.getEntries();
+        Path tileDirectory = Path.of(Constants.TILE_DIRECTORY);
 
-                for (TarArchiveEntry entry : entries) {
-                    Path entryPath = tileDirectory.resolve(entry.getName());
+        try (TarFile archive = new TarFile(file)) {
+            List<TarArchiveEntry> entries = archive.getEntries();
+
+            for (TarArchiveEntry entry : entries) {
+                Path entryPath = tileDirectory.resolve(entry.getName());
+
+                if (entry.isDirectory()) {
+                    Files.createDirectories(entryPath);
+                } else if (entry.isLink()) {
+                    Files.createDirectories(entryPath.getParent());
+                    Files.deleteIfExists(entryPath);
+                    Files.createLink(entryPath, tileDirectory.resolve(entry.getLinkName()));
+                } else if (isContent(entry.getName())) {
+                    // Content is named by its hash, so existing content is identical
+                    if (Files.exists(entryPath)) {
+                        continue;
+                    }
 
-                    if (entry.isDirectory()) {
-                        Files.createDirectories(entryPath);
-                    } else {
-                        Files.createDirectories(entryPath.getParent());
+                    // Moved into place atomically, as archives of other levels may link to the same content
+                    Files.createDirectories(entryPath.getParent());
+                    Path temp = Files.createTempFile(entryPath.getParent(), entryPath.getFileName().toString(), ".tmp");
 
-                        try (InputStream in = archive.getInputStream(entry)) {
-                            try (OutputStream out = new FileOutputStream(entryPath.toFile())) {
-                                IOUtils.copy(in, out);
-                            }
-                        }
+                    try (InputStream in = archive.getInputStream(entry)) {
+                        Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+                    }
+
+                    Files.move(temp, entryPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } else {
+                    try (InputStream in = archive.getInputStream(entry)) {
+                        writeTile(entryPath, in);
                     }
                 }
             }
-        } catch (IOException e) {
-            logger.error("Error while saving tile archive to flat file.", e);
+        }
+    }
+
+    /**
+     * Extracts the tiles of a Zip archive. Zip archives contain neither links nor content.
+     */
+    private void commitZipArchive(File file) throws IOException {
+        Path tileDirectory = Path.of(Constants.TILE_DIRECTORY);
+
+        try (ZipFile archive = ZipFile.builder().setFile(file).get()) {
+            Enumeration<ZipArchiveEntry> entries = archive.getEntries();
+
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                Path entryPath = tileDirectory.resolve(entry.getName());
+
+                if (entry.isDirectory()) {
+                    Files.createDirectories(entryPath);
+                } else {
+                    try (InputStream in = archive.getInputStream(entry)) {
+                        writeTile(entryPath, in);
+                    }
+                }
+            }
+        }
+    }
+
+    private void writeTile(Path path, InputStream in) throws IOException {
+        Files.createDirectories(path.getParent());
+
+        // The tile may be linked to content shared with other slides, which must not be overwritten
+        Files.deleteIfExists(path);
+
+        try (OutputStream out = new FileOutputStream(path.toFile())) {
+            IOUtils.copy(in, out);
         }
     }
 
@@ -83,6 +147,53 @@ public class LocalSlideStorage implements StorageProvider {
         return THUMBNAIL_URL.replace("{host}", host);
     }
 
+    @Override public String getDeepZoomURI() {
+        String host = Config.getString("server.host");
+
+        return DEEP_ZOOM_URL.replace("{host}", host);
+    }
+
+    @Override public String getDeepZoomNamingFormat() {
+        return DEEP_ZOOM_NAME_FORMAT;
+    }
+
+    @Override public String getDeepZoomTileNamingFormat() {
+        return DEEP_ZOOM_TILE_NAME_FORMAT;
+    }
+
+    @Override public String getContentNamingFormat() {
+        return CONTENT_NAME_FORMAT;
+    }
+
+    /**
+     * Existing content is touched, so that {@link DeleteUnusedContent} keeps it until the tiles linking to it have
+     * been committed.
+     */
+    @Override public boolean hasContent(String name) {
+        Path content = Path.of(Constants.TILE_DIRECTORY).resolve(name);
+
+        try {
+            Files.setLastModifiedTime(content, FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            logger.error("Error while touching content {}", name, e);
+            return Files.exists(content);
+        }
+    }
+
+    /**
+     * @return directory of the content-addressed area, see {@link #getContentNamingFormat()}.
+     */
+    public static Path getContentDirectory() {
+        return Path.of(Constants.TILE_DIRECTORY, CONTENT_NAME_FORMAT.substring(0, CONTENT_NAME_FORMAT.indexOf('/')));
+    }
+
+    private boolean isContent(String name) {
+        return name.startsWith(CONTENT_NAME_FORMAT.substring(0, CONTENT_NAME_FORMAT.indexOf('{')));
+    }
+
     @Override public String getTileNamingFormat() {
         return TILE_NAME_FORMAT;
     }
@@ -1,6 +1,13 @@
 package fi.ylihallila.server.storage;
 
+import fi.ylihallila.server.archivers.TarTileArchive;
+import fi.ylihallila.server.archivers.TileArchive;
+import fi.ylihallila.server.archivers.ZipTileArchive;
+
 import java.io.File;
+import java.io.IOException;
+
+import static fi.ylihallila.server.util.Config.Config;
 
 /**
  * Storage Provider represents a place where tiles can be saved & accessed from.
@@ -23,11 +30,29 @@ public interface StorageProvider {
     void commitFile(byte[] bytes, String fileName);
 
     /**
-     * Save an archive.
+     * Save an archive. May be called from several threads at once.
      *
      * @param file archive to save.
+     * @throws IOException if the archive could not be saved.
      */
-    void commitArchive(File file);
+    void commitArchive(File file) throws IOException;
+
+    /**
+     * Creates the archive the tiles of a level are added to before it is saved with {@link #commitArchive(File)}.
+     *
+     * @param id id of the slide.
+     * @param level level of the slide.
+     * @param resume if true, the complete tiles of an archive left by an interrupted tiling job are kept.
+     * @return archive of the level; a {@link TarTileArchive}, or a {@link ZipTileArchive} if <code>storage.archive</code>
+     *         is <code>zip</code>.
+     */
+    default TileArchive createArchive(String id, int level, boolean resume) {
+        if (Config.getString("storage.archive").equals("zip")) {
+            return new ZipTileArchive(id, level, resume);
+        }
+
+        return new TarTileArchive(id, level, resume);
+    }
 
     /**
      * Returns the URI where the tiles are located.
@@ -60,6 +85,46 @@ public interface StorageProvider {
      */
     String getThumbnailNamingFormat();
 
+    /**
+     * Returns the URI where the DeepZoom descriptor (.dzi) of a slide tiled with the DeepZoom layout is located.
+     * Supported placeholders: <code>{id}</code>.
+     *
+     * @return string descriptor URI with placeholders.
+     */
+    String getDeepZoomURI();
+
+    /**
+     * Returns the DeepZoom descriptor naming format. DeepZoom viewers expect the tiles in a directory next to the
+     * descriptor, named like the descriptor with <b>_files</b> instead of <b>.dzi</b>.
+     * Supported placeholders: <code>{id}</code>.
+     *
+     * @return string Descriptor naming scheme with placeholders.
+     */
+    String getDeepZoomNamingFormat();
+
+    /**
+     * Returns the individual tile naming format of the DeepZoom layout, <b>[descriptor]_files/{level}/{column}_{row}.jpg</b>.
+     * Supported placeholders are: <code>{id}, {level}, {column}, {row}</code>.
+     *
+     * @return string Tile naming scheme with placeholders.
+     */
+    String getDeepZoomTileNamingFormat();
+
+    /**
+     * Returns the naming format of the content-addressed area, where tiles with identical content are stored once
+     * and linked to by their tile names. Supported placeholders: <code>{hash}, {prefix}</code>, the first two
+     * characters of the hash.
+     *
+     * @return string Content naming scheme with placeholders or null if the provider can't link tiles to content.
+     */
+    String getContentNamingFormat();
+
+    /**
+     * @param name name of the content, see {@link #getContentNamingFormat()}.
+     * @return true if the content has been committed.
+     */
+    boolean hasContent(String name);
+
     /**
      * @return string Friendly name for Storage Provider.
      */
@@ -26,6 +26,7 @@ public class Constants {
      */
     public final static String PENDING_DIRECTORY     = "pending/";
     public final static String PENDING_SLIDES        = PENDING_DIRECTORY + "%s.pending";
+    public final static String TILING_CHECKPOINT     = PENDING_DIRECTORY + "%s.checkpoint";
 
     public final static String BACKUP_DIRECTORY      = "backups/";
 
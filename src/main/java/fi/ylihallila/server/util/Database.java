@@ -6,6 +6,7 @@ import org.hibernate.boot.Metadata;
 import org.hibernate.boot.MetadataSources;
 import org.hibernate.boot.registry.StandardServiceRegistry;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.AvailableSettings;
 import org.hibernate.type.UUIDCharType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,9 +19,13 @@ public class Database {
 	private static SessionFactory sessionFactory = null;
 
 	static {
-		StandardServiceRegistry registry = new StandardServiceRegistryBuilder()
-			.configure()
-			.build();
+		StandardServiceRegistryBuilder builder = new StandardServiceRegistryBuilder().configure();
+
+		if (Config.Config.hasPath("database.url")) {
+			builder.applySetting(AvailableSettings.URL, Config.Config.getString("database.url"));
+		}
+
+		StandardServiceRegistry registry = builder.build();
 
 		try {
 			MetadataSources sources = new MetadataSources(registry);
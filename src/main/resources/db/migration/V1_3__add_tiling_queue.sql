@@ -0,0 +1,15 @@
+create table TILING_QUEUE
+(
+    ID VARCHAR(255) not null
+        primary key,
+    PATH VARCHAR(1024),
+    OWNERID VARCHAR(255),
+    PRIORITY VARCHAR(255),
+    STATE VARCHAR(255),
+    ATTEMPTS INTEGER default 0 not null,
+    LEVELSDONE INTEGER default 0 not null,
+    CREATEDAT BIGINT,
+    UPDATEDAT BIGINT
+);
+
+create index TILING_QUEUE_STATE on TILING_QUEUE (STATE);
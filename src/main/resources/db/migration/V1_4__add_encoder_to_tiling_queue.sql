@@ -0,0 +1 @@
+alter table TILING_QUEUE add ENCODER VARCHAR(255);
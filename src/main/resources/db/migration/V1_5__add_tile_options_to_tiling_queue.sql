@@ -0,0 +1,3 @@
+alter table TILING_QUEUE add TILESIZE INTEGER;
+alter table TILING_QUEUE add OVERLAP INTEGER;
+alter table TILING_QUEUE add LAYOUT VARCHAR(255);
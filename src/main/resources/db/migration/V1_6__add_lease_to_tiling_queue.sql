@@ -0,0 +1,2 @@
+alter table TILING_QUEUE add LEASEOWNER VARCHAR(255);
+alter table TILING_QUEUE add LEASEEXPIRESAT BIGINT;
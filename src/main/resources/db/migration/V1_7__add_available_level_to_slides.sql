@@ -0,0 +1,4 @@
+alter table SLIDES add AVAILABLELEVEL INTEGER;
+
+-- Every level of slides which have already been tiled is available.
+update SLIDES set AVAILABLELEVEL = 0 where TILED = TRUE;
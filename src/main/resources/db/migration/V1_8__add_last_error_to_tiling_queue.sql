@@ -0,0 +1 @@
+alter table TILING_QUEUE add LASTERROR VARCHAR(1024);
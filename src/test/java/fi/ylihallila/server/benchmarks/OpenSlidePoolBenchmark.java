@@ -0,0 +1,123 @@
+package fi.ylihallila.server.benchmarks;
+
+import fi.ylihallila.server.generators.OpenSlidePool;
+import org.openslide.OpenSlide;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmarks reading tiles through {@link OpenSlidePool} with different numbers of handles, to choose
+ * <code>tiler.openslide.handles</code>. Needs the OpenSlide native library and a slide; not run by the tests.
+ * <p>
+ * Run with the test classpath: <code>OpenSlidePoolBenchmark slide.svs [threads]</code>. The same number of
+ * threads read the same tiles in every run, so only the number of handles changes.
+ */
+public class OpenSlidePoolBenchmark {
+
+    private static final int TILE_SIZE = 512;
+    private static final int TILES = 512;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || !new File(args[0]).exists()) {
+            System.err.println("Usage: OpenSlidePoolBenchmark <slide> [threads]");
+            System.exit(1);
+        }
+
+        File file = new File(args[0]);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        List<Integer> handleCounts = new ArrayList<>();
+
+        for (int handles = 1; handles < threads; handles *= 2) {
+            handleCounts.add(handles);
+        }
+
+        handleCounts.add(threads);
+
+        // Warm up the JIT and the page cache
+        read(file, threads, threads);
+
+        System.out.printf("Reading %d tiles of %dx%d px with %d threads%n", TILES, TILE_SIZE, TILE_SIZE, threads);
+
+        double single = 0;
+
+        for (int handles : handleCounts) {
+            double tilesPerSecond = read(file, handles, threads);
+
+            if (handles == 1) {
+                single = tilesPerSecond;
+            }
+
+            System.out.printf("%3d handles: %8.1f tiles/s, %7.1f MB/s, %.2fx%n",
+                handles, tilesPerSecond, tilesPerSecond * TILE_SIZE * TILE_SIZE * 4 / 1024 / 1024, tilesPerSecond / single);
+        }
+    }
+
+    /**
+     * Reads {@link #TILES} tiles of level 0, spread over the slide, through a new pool.
+     *
+     * @return tiles read per second.
+     */
+    private static double read(File file, int handles, int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        AtomicInteger failed = new AtomicInteger();
+
+        try (OpenSlidePool pool = new OpenSlidePool(file, new OpenSlide(file), handles)) {
+            OpenSlide openSlide = pool.borrow();
+            long width = openSlide.getLevel0Width();
+            long height = openSlide.getLevel0Height();
+            pool.release(openSlide);
+
+            int columns = (int) Math.max(1, width / TILE_SIZE);
+            int rows = (int) Math.max(1, height / TILE_SIZE);
+
+            List<Callable<Void>> tasks = new ArrayList<>();
+
+            for (int i = 0; i < TILES; i++) {
+                // Stride through the grid so that consecutive tiles are not neighbours
+                long tile = (long) i * 7919 % ((long) columns * rows);
+                long x = tile % columns * TILE_SIZE;
+                long y = tile / columns * TILE_SIZE;
+
+                tasks.add(() -> {
+                    int[] argb = new int[TILE_SIZE * TILE_SIZE];
+                    OpenSlide handle = pool.borrow();
+
+                    try {
+                        handle.paintRegionARGB(argb, x, y, 0, TILE_SIZE, TILE_SIZE);
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    } finally {
+                        pool.release(handle);
+                    }
+
+                    return null;
+                });
+            }
+
+            long start = System.nanoTime();
+
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+
+            long duration = System.nanoTime() - start;
+
+            if (failed.get() > 0) {
+                throw new IllegalStateException(failed.get() + " tiles could not be read");
+            }
+
+            if (pool.getOpenHandles() > handles) {
+                throw new IllegalStateException(pool.getOpenHandles() + " handles were opened, expected at most " + handles);
+            }
+
+            return TILES / (duration / 1e9);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package fi.ylihallila.server.tests;
+
+import fi.ylihallila.server.generators.HandlePool;
+import org.junit.jupiter.api.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Borrows handles from a {@link HandlePool}, as tiles are read through the OpenSlide handles of a slide.
+ */
+public class TestHandlePool {
+
+    @Test
+    public void HandlesAreOpenedUpToTheSize() throws Exception {
+        List<Handle> opened = new ArrayList<>();
+
+        try (HandlePool<Handle> pool = pool(3, opened)) {
+            Handle first = pool.borrow();
+            Handle second = pool.borrow();
+            Handle third = pool.borrow();
+
+            assertThat(pool.getOpenHandles()).isEqualTo(3);
+            assertThat(List.of(first, second, third)).doesNotHaveDuplicates();
+
+            // Every handle is in use, so the next borrower waits for one to be released
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            Future<Handle> fourth = executor.submit(pool::borrow);
+
+            assertThat(catchTimeout(fourth)).isTrue();
+
+            pool.release(second);
+
+            assertThat(fourth.get(5, TimeUnit.SECONDS)).isSameAs(second);
+            assertThat(pool.getOpenHandles()).isEqualTo(3);
+
+            executor.shutdown();
+        }
+
+        assertThat(opened).allMatch(handle -> handle.closed.get());
+    }
+
+    @Test
+    public void HandlesAreReusedUnderContention() throws Exception {
+        List<Handle> opened = new CopyOnWriteArrayList<>();
+        AtomicInteger borrowed = new AtomicInteger();
+        AtomicInteger maxBorrowed = new AtomicInteger();
+        AtomicInteger shared = new AtomicInteger();
+
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try (HandlePool<Handle> pool = pool(4, opened)) {
+            List<Callable<Void>> tasks = new ArrayList<>();
+
+            for (int i = 0; i < threads; i++) {
+                tasks.add(() -> {
+                    for (int j = 0; j < 1000; j++) {
+                        Handle handle = pool.borrow();
+
+                        try {
+                            maxBorrowed.accumulateAndGet(borrowed.incrementAndGet(), Math::max);
+
+                            if (!handle.inUse.compareAndSet(false, true)) {
+                                shared.incrementAndGet();
+                            }
+
+                            Thread.yield();
+                            handle.inUse.set(false);
+                        } finally {
+                            borrowed.decrementAndGet();
+                            pool.release(handle);
+                        }
+                    }
+
+                    return null;
+                });
+            }
+
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+
+            assertThat(shared.get()).isZero();
+            assertThat(maxBorrowed.get()).isLessThanOrEqualTo(4);
+            assertThat(pool.getOpenHandles()).isEqualTo(opened.size()).isLessThanOrEqualTo(4);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void OpenHandlesAreUsedWhenOpeningFails() throws Exception {
+        Handle first = new Handle();
+
+        HandlePool.Opener<Handle> failing = () -> {
+            throw new IOException("Too many open files");
+        };
+
+        try (HandlePool<Handle> pool = new HandlePool<>("slide", failing, first, 4)) {
+            Handle borrowed = pool.borrow();
+
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            Future<Handle> next = executor.submit(pool::borrow);
+
+            pool.release(borrowed);
+
+            assertThat(next.get(5, TimeUnit.SECONDS)).isSameAs(first);
+            assertThat(pool.getOpenHandles()).isEqualTo(1);
+
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void BorrowAfterCloseFails() throws Exception {
+        HandlePool<Handle> pool = pool(1, new ArrayList<>());
+        Handle borrowed = pool.borrow();
+
+        // The only handle is in use, so the next borrower waits until the pool is closed
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Handle> waiting = executor.submit(pool::borrow);
+
+        assertThat(catchTimeout(waiting)).isTrue();
+
+        pool.close();
+
+        assertThatThrownBy(() -> waiting.get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(pool::borrow).isInstanceOf(IllegalStateException.class);
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void ReleaseAfterCloseClosesHandle() throws Exception {
+        List<Handle> opened = new ArrayList<>();
+        HandlePool<Handle> pool = pool(2, opened);
+
+        Handle first = pool.borrow();
+        Handle second = pool.borrow();
+
+        // Closed while the handles are still borrowed, as when a tile is read after tiling was aborted
+        pool.close();
+
+        // So that only releasing it can close it again, rather than returning it to the pool
+        first.closed.set(false);
+
+        pool.release(first);
+        pool.release(second);
+
+        assertThat(opened).allMatch(handle -> handle.closed.get());
+        assertThat(pool.getOpenHandles()).isZero();
+        assertThatThrownBy(pool::borrow).isInstanceOf(IllegalStateException.class);
+    }
+
+    private static HandlePool<Handle> pool(int size, List<Handle> opened) {
+        Handle first = new Handle();
+        opened.add(first);
+
+        return new HandlePool<>("slide", () -> {
+            Handle handle = new Handle();
+            opened.add(handle);
+
+            return handle;
+        }, first, size);
+    }
+
+    /**
+     * @return true if the future didn't complete within 200 ms.
+     */
+    private static boolean catchTimeout(Future<?> future) throws Exception {
+        try {
+            future.get(200, TimeUnit.MILLISECONDS);
+            return false;
+        } catch (TimeoutException e) {
+            return true;
+        }
+    }
+
+    private static class Handle implements Closeable {
+
+        private final AtomicBoolean inUse = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        @Override
+        public void close() {
+            closed.set(true);
+        }
+    }
+}
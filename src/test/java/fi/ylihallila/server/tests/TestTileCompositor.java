@@ -0,0 +1,120 @@
+package fi.ylihallila.server.tests;
+
+import fi.ylihallila.server.generators.TileCompositor;
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares {@link TileCompositor} to drawing tiles with Java2D, which is how tiles were flattened before.
+ */
+public class TestTileCompositor {
+
+    private static final DirectColorModel RGB = new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF);
+    private static final DirectColorModel ARGB_PRE = new DirectColorModel(
+        ColorSpace.getInstance(ColorSpace.CS_sRGB), 32, 0xFF0000, 0xFF00, 0xFF, 0xFF000000, true, DataBuffer.TYPE_INT
+    );
+
+    private static final int SIZE = 256;
+
+    private static final Color[] BACKGROUNDS = {
+        Color.BLACK, Color.WHITE, new Color(243, 243, 243), new Color(1, 128, 254), new Color(255, 0, 127)
+    };
+
+    @Test
+    public void EveryAlphaAndChannelValue() {
+        // Every valid premultiplied (alpha, value) pair, with the value shifted between channels
+        int[] argb = new int[SIZE * SIZE];
+        int i = 0;
+
+        for (int alpha = 0; alpha < 256; alpha++) {
+            for (int value = 0; value <= alpha; value++) {
+                argb[i++] = alpha << 24 | value << 16 | (alpha - value) << 8 | value / 2;
+            }
+        }
+
+        for (Color background : BACKGROUNDS) {
+            assertFlattenedLikeJava2D(argb, background);
+        }
+    }
+
+    @Test
+    public void RandomPixels() {
+        Random random = new Random(42);
+        int[] argb = new int[SIZE * SIZE];
+
+        for (int i = 0; i < argb.length; i++) {
+            int alpha = switch (random.nextInt(4)) {
+                case 0 -> 0;
+                case 1 -> 255;
+                default -> random.nextInt(256);
+            };
+
+            argb[i] = alpha << 24
+                | random.nextInt(alpha + 1) << 16
+                | random.nextInt(alpha + 1) << 8
+                | random.nextInt(alpha + 1);
+        }
+
+        for (Color background : BACKGROUNDS) {
+            assertFlattenedLikeJava2D(argb, background);
+        }
+    }
+
+    @Test
+    public void PartialTileInLargerBuffer() {
+        int[] argb = new int[SIZE * SIZE];
+        int[] rgb = new int[SIZE * SIZE];
+
+        Arrays.fill(argb, 0x80402010);
+        Arrays.fill(rgb, 0x123456);
+
+        TileCompositor.flatten(argb, rgb, 100, Color.WHITE.getRGB());
+
+        assertThat(rgb[99]).isEqualTo(0xBF9F8F);
+        assertThat(rgb[100]).isEqualTo(0x123456);
+    }
+
+    private void assertFlattenedLikeJava2D(int[] argb, Color background) {
+        int[] expected = flattenWithJava2D(argb, background);
+        int[] actual = new int[argb.length];
+
+        TileCompositor.flatten(argb, actual, argb.length, background.getRGB());
+
+        for (int i = 0; i < argb.length; i++) {
+            // The alpha byte is not part of an RGB pixel
+            assertThat(actual[i])
+                .as("pixel %08x on background %06x", argb[i], background.getRGB() & 0xFFFFFF)
+                .isEqualTo(expected[i] & 0xFFFFFF);
+        }
+    }
+
+    private int[] flattenWithJava2D(int[] argb, Color background) {
+        int[] rgb = new int[argb.length];
+
+        BufferedImage img = wrap(rgb, RGB);
+        Graphics2D g2d = img.createGraphics();
+
+        g2d.setColor(background);
+        g2d.fillRect(0, 0, SIZE, SIZE);
+
+        g2d.drawImage(wrap(argb.clone(), ARGB_PRE), 0, 0, SIZE, SIZE, null);
+        g2d.dispose();
+
+        return rgb;
+    }
+
+    private BufferedImage wrap(int[] pixels, DirectColorModel model) {
+        WritableRaster raster = Raster.createPackedRaster(
+            new DataBufferInt(pixels, pixels.length), SIZE, SIZE, SIZE, model.getMasks(), null
+        );
+
+        return new BufferedImage(model, raster, model.isAlphaPremultiplied(), null);
+    }
+}
@@ -0,0 +1,103 @@
+package fi.ylihallila.server.tests;
+
+import fi.ylihallila.server.archivers.TileContainer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Appends level archives to a {@link TileContainer} and reads the tiles back, as the tiler and the server do.
+ */
+public class TestTileContainer {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void AppendedSegmentsAreFound() throws IOException {
+        Path container = directory.resolve("tiles.container");
+
+        TileContainer.append(container, segment("level-1", "slide/1/0_0.jpg", "slide/1/1_0.jpg"), "slide/");
+        TileContainer.append(container, segment("level-0", "slide/0/0_0.jpg", "slide/1/1_0.jpg"), "slide/");
+
+        try (TileContainer.Reader reader = TileContainer.Reader.open(container)) {
+            assertThat(reader.getTileCount()).isEqualTo(3);
+            assertThat(reader.read("1/0_0.jpg")).isEqualTo(data("slide/1/0_0.jpg", "level-1"));
+            assertThat(reader.read("0/0_0.jpg")).isEqualTo(data("slide/0/0_0.jpg", "level-0"));
+
+            // Appended again, so the later tile replaces the earlier one
+            assertThat(reader.read("1/1_0.jpg")).isEqualTo(data("slide/1/1_0.jpg", "level-0"));
+
+            assertThat(reader.read("2/0_0.jpg")).isNull();
+            assertThat(reader.read("slide/0/0_0.jpg")).isNull();
+        }
+    }
+
+    @Test
+    public void InterruptedAppendIsDiscarded() throws IOException {
+        Path container = directory.resolve("tiles.container");
+
+        TileContainer.append(container, segment("level-1", "1/0_0.jpg"), "");
+        long size = Files.size(container);
+
+        // An append which was cut off in the middle of a tile
+        TileContainer.append(container, segment("level-0", "0/0_0.jpg", "0/1_0.jpg"), "");
+
+        try (FileChannel channel = FileChannel.open(container, StandardOpenOption.WRITE)) {
+            channel.truncate(size + 20);
+        }
+
+        assertThatThrownBy(() -> TileContainer.Reader.open(container)).isInstanceOf(IOException.class);
+
+        TileContainer.append(container, segment("level-0", "0/1_0.jpg"), "");
+
+        try (TileContainer.Reader reader = TileContainer.Reader.open(container)) {
+            assertThat(reader.getTileCount()).isEqualTo(2);
+            assertThat(reader.read("1/0_0.jpg")).isEqualTo(data("1/0_0.jpg", "level-1"));
+            assertThat(reader.read("0/1_0.jpg")).isEqualTo(data("0/1_0.jpg", "level-0"));
+            assertThat(reader.read("0/0_0.jpg")).isNull();
+        }
+    }
+
+    @Test
+    public void PartialArchiveIsScanned() throws IOException {
+        Path archive = segment("level-0", "0/0_0.jpg", "0/1_0.jpg", "0/2_0.jpg");
+
+        try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            TileContainer.Tile last = TileContainer.scan(channel).getTiles().get(2);
+
+            // The archive of an interrupted tiling job, which ends in the middle of the last tile
+            channel.truncate(last.getOffset() + last.getLength() / 2);
+
+            TileContainer.Scan scan = TileContainer.scan(channel);
+
+            assertThat(scan.getTiles()).extracting(TileContainer.Tile::getName).containsExactly("0/0_0.jpg", "0/1_0.jpg");
+            assertThat(scan.getIndex()).isEmpty();
+        }
+    }
+
+    private Path segment(String name, String... tiles) throws IOException {
+        Path file = Files.createTempFile(directory, name, ".container");
+
+        try (TileContainer.Writer writer = new TileContainer.Writer(file.toFile())) {
+            for (String tile : tiles) {
+                writer.add(tile, data(tile, name));
+            }
+        }
+
+        return file;
+    }
+
+    private static byte[] data(String tile, String segment) {
+        return (segment + ":" + tile).repeat(100).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,145 @@
+package fi.ylihallila.server.tests;
+
+import fi.ylihallila.server.archivers.ZipTileArchive;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Adds tiles to a {@link ZipTileArchive} from several threads, as the tiling pipeline does, and reads them back.
+ */
+public class TestZipTileArchive {
+
+    private static final int TILES = 2000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void TilesAreReadBack() throws Exception {
+        ZipTileArchive archive = new ZipTileArchive(directory.resolve("slide").toString(), 0);
+        AtomicInteger written = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        for (int i = 0; i < TILES; i++) {
+            String name = tile(i);
+            byte[] data = data(name);
+
+            // Half of the tiles come with the checksum computed by the encode stage
+            if (i % 2 == 0) {
+                executor.execute(() -> archive.addTile(name, data, crc(data), written::incrementAndGet));
+            } else {
+                executor.execute(() -> archive.addTile(name, data, written::incrementAndGet));
+            }
+        }
+
+        executor.shutdown();
+        assertThat(executor.awaitTermination(1, TimeUnit.MINUTES)).isTrue();
+
+        File file = archive.save();
+
+        assertThat(file).isNotNull();
+        assertThat(written.get()).isEqualTo(TILES);
+
+        Map<String, byte[]> tiles = read(file);
+
+        assertThat(tiles).hasSize(TILES);
+
+        for (int i = 0; i < TILES; i++) {
+            assertThat(tiles.get(tile(i))).isEqualTo(data(tile(i)));
+        }
+    }
+
+    @Test
+    public void PartialArchiveIsRecovered() throws Exception {
+        String slide = directory.resolve("slide").toString();
+        ZipTileArchive archive = new ZipTileArchive(slide, 0);
+
+        for (int i = 0; i < 10; i++) {
+            archive.addTile(tile(i), data(tile(i)));
+        }
+
+        File file = archive.save();
+
+        // The archive of an interrupted tiling job, which has no central directory and ends in the middle of a tile
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() / 2);
+        }
+
+        ZipTileArchive resumed = new ZipTileArchive(slide, 0, true);
+
+        assertThat(resumed.getRecoveredTiles()).hasSizeBetween(1, 9);
+
+        for (int i = 0; i < 10; i++) {
+            if (!resumed.getRecoveredTiles().contains(tile(i))) {
+                resumed.addTile(tile(i), data(tile(i)));
+            }
+        }
+
+        Map<String, byte[]> tiles = read(resumed.save());
+
+        assertThat(tiles).hasSize(10);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(tiles.get(tile(i))).isEqualTo(data(tile(i)));
+        }
+    }
+
+    /**
+     * Reads every tile, verifying the checksums.
+     */
+    private static Map<String, byte[]> read(File file) throws IOException {
+        Map<String, byte[]> tiles = new HashMap<>();
+
+        try (ZipFile zip = ZipFile.builder().setFile(file).get()) {
+            for (ZipArchiveEntry entry : Collections.list(zip.getEntries())) {
+                assertThat(entry.getMethod()).isEqualTo(ZipArchiveEntry.STORED);
+
+                try (InputStream in = zip.getInputStream(entry)) {
+                    byte[] data = IOUtils.toByteArray(in);
+
+                    assertThat(entry.getCrc()).isEqualTo(crc(data));
+                    tiles.put(entry.getName(), data);
+                }
+            }
+        }
+
+        return tiles;
+    }
+
+    private static String tile(int i) {
+        return "slide/0/" + i + "_0.jpg";
+    }
+
+    private static byte[] data(String tile) {
+        return tile.repeat(50).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        return crc.getValue();
+    }
+}